@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Thread safe registry of the connected clients of the global chat.
+ * <p>
+ * Lookups by client id, and by name for direct messages, go through concurrent hash maps.
+ * For broadcasts the clients are also kept in a fixed number of segments, each an immutable
+ * array replaced on every join or leave. Iterating never takes a lock and never sees a half
+ * applied change, and a join or leave only copies the one segment it touches.
+ */
+public class ClientRegistry {
+    //also the most shards a broadcast can be split into, see FanOut
+    static final int SEGMENT_COUNT = 64;
+    private static final Server.Client[] EMPTY = new Server.Client[0];
+
+    // Segment holding a copy on write array of clients
+    private static final class Segment {
+        //guards writers only, readers just read the volatile array
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Server.Client[] clients = EMPTY;
+    }
+
+    private final Map<String, Server.Client> byId = new ConcurrentHashMap<>();
+
+    //names are not unique, a name belongs to the first client that took it until that client leaves
+    private final Map<String, Server.Client> byName = new ConcurrentHashMap<>();
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    public ClientRegistry() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+
+    /**
+     * Method to add a client, its id must already be set
+     *
+     * @param client client to add
+     */
+    public void add(Server.Client client) {
+        if (byId.putIfAbsent(client.clientId, client) != null) return;
+
+        Segment segment = segmentOf(client.clientId);
+        segment.lock.lock();
+        try {
+            Server.Client[] current = segment.clients;
+            Server.Client[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = client;
+            segment.clients = updated;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Method to remove a client
+     *
+     * @param client client to remove
+     * @return true if the client was registered
+     */
+    public boolean remove(Server.Client client) {
+        if (!byId.remove(client.clientId, client)) return false;
+
+        String name = client.clientName;
+        if (name != null) byName.remove(name, client);
+
+        Segment segment = segmentOf(client.clientId);
+        segment.lock.lock();
+        try {
+            Server.Client[] current = segment.clients;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == client) {
+                    Server.Client[] updated = new Server.Client[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    segment.clients = updated;
+                    break;
+                }
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        return true;
+    }
+
+
+    /**
+     * Method to find a client by id
+     *
+     * @param clientId id of the client
+     * @return the client or null if not connected
+     */
+    public Server.Client get(String clientId) {
+        return byId.get(clientId);
+    }
+
+
+    /**
+     * Method to set the name of a client and index it for direct messages
+     *
+     * @param client client that entered a name
+     * @param name   name of the client
+     */
+    public void rename(Server.Client client, String name) {
+        String previous = client.clientName;
+        if (previous != null) byName.remove(previous, client);
+
+        client.clientName = name;
+        if (name != null) byName.putIfAbsent(name, client);
+    }
+
+
+    /**
+     * Method to find the recipient of a direct message
+     *
+     * @param target id or name of the recipient
+     * @return the client with that id, else the client with that name, null if there is none
+     */
+    public Server.Client find(String target) {
+        Server.Client client = byId.get(target);
+        return client != null ? client : byName.get(target);
+    }
+
+
+    /**
+     * Method to get the number of connected clients
+     *
+     * @return client count
+     */
+    public int size() {
+        return byId.size();
+    }
+
+
+    /**
+     * Method to run an action for every client without locking
+     * <p>
+     * Each segment is read once, so clients joining or leaving meanwhile may or may not
+     * be visited but nobody is visited twice.
+     *
+     * @param action action to run
+     */
+    public void forEach(Consumer<Server.Client> action) {
+        for (Segment segment : segments) {
+            for (Server.Client client : segment.clients) {
+                action.accept(client);
+            }
+        }
+    }
+
+
+    /**
+     * Method to run an action for the clients of one shard without locking
+     * <p>
+     * Shard {@code n} of {@code shards} owns every segment whose index is {@code n} modulo
+     * {@code shards}, so the shards together visit every client exactly once.
+     *
+     * @param shard  index of the shard
+     * @param shards number of shards, at most the number of segments
+     * @param action action to run
+     */
+    public void forEach(int shard, int shards, Consumer<Server.Client> action) {
+        for (int i = shard; i < SEGMENT_COUNT; i += shards) {
+            for (Server.Client client : segments[i].clients) {
+                action.accept(client);
+            }
+        }
+    }
+
+
+    private Segment segmentOf(String clientId) {
+        return segments[(clientId.hashCode() & 0x7fffffff) % SEGMENT_COUNT];
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Federation of several global chat servers into one chat.
+ * <p>
+ * The first node of the cluster is the sequencer. Every other node keeps one link to it and
+ * forwards the chat messages, joins and leaves of its own clients over it. The sequencer numbers
+ * all events in the order it receives them, its own included, and passes each one on to every
+ * node except the one it came from, which only gets a short acknowledgement with the number.
+ * A node delivers its own events to its clients once they are acknowledged, so every node
+ * delivers the same events in the same order and no event travels back to where it came from.
+ * Events published while a node's link is down are forwarded once it is back, so an event whose
+ * acknowledgement was lost with the link may be delivered twice. A node keeps only so many events
+ * waiting for the sequencer, beyond that further events are refused until it catches up.
+ * <p>
+ * Configured with e.g. {@code -Dchat.cluster.nodes=localhost:9000,localhost:9001,localhost:9002}
+ * and {@code -Dchat.cluster.id=1}, the id being the position of the node in the list. The
+ * sequencer listens for links on the port of its entry.
+ */
+public class Cluster {
+
+    //settings read by the servers, without a node list the server runs on its own
+    public static final String PROPERTY_NODES = "chat.cluster.nodes";
+    public static final String PROPERTY_ID = "chat.cluster.id";
+
+    //wait before connecting to the sequencer again after the link failed
+    private static final long RECONNECT_MILLIS = 1000;
+
+    //frames a link may have waiting before the thread delivering to it blocks
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+
+    //own events a node keeps waiting for the sequencer, as many as the link takes when it is back
+    private static final int PENDING_CAPACITY = LINK_QUEUE_CAPACITY;
+
+    // Receives the events in cluster order
+    public interface Delivery {
+        /**
+         * Method to fan an event out to the local clients
+         *
+         * @param event    message to fan out
+         * @param senderId local client that sent it, null for events from other nodes
+         */
+        void deliver(Map<String, String> event, String senderId);
+    }
+
+    // Event of this node waiting for its place in the order
+    private static final class Pending {
+        final Map<String, String> event;
+        final String senderId;
+
+        Pending(Map<String, String> event, String senderId) {
+            this.event = event;
+            this.senderId = senderId;
+        }
+    }
+
+    // Link between a node and the sequencer, frames go out in the binary format
+    private static final class Link {
+        final Socket socket;
+        final MessageReader reader;
+        final OutboundQueue outbound;
+
+        //node at the other end, known once it said hello
+        int node = -1;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new MessageReader(socket.getInputStream());
+            this.outbound = new OutboundQueue(socket, new BufferedOutputStream(socket.getOutputStream()),
+                    LINK_QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.BLOCK);
+            outbound.setFormat(Codec.Format.BINARY);
+            socket.setTcpNoDelay(true);
+            startThread(outbound, "cluster-writer");
+        }
+
+        void close() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final int id;
+    private final InetSocketAddress[] nodes;
+    private final Delivery delivery;
+
+    //sequencer only, the links of the other nodes and the number of the last event
+    private final List<Link> peers = new CopyOnWriteArrayList<>();
+    private long sequence;
+
+    //other nodes only, the link to the sequencer, null while it is down, and the events it has not ordered yet
+    private Link sequencer;
+    private final TreeMap<Long, Pending> pending = new TreeMap<>();
+    private long localCount;
+    private long lastSequence;
+
+    //set once an event was refused for a full pending map, so an outage is only reported once
+    private boolean refusing;
+
+    private Cluster(int id, InetSocketAddress[] nodes, Delivery delivery) {
+        this.id = id;
+        this.nodes = nodes;
+        this.delivery = delivery;
+    }
+
+
+    /**
+     * Method to join the cluster described by the system properties
+     *
+     * @param delivery fans events out to the local clients
+     * @return cluster with its threads started, null if no nodes are configured
+     */
+    public static Cluster fromProperties(Delivery delivery) throws IOException {
+        String list = System.getProperty(PROPERTY_NODES);
+        if (list == null || list.isBlank()) return null;
+
+        String[] entries = list.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int colon = entry.lastIndexOf(':');
+            nodes[i] = new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)));
+        }
+
+        int id = Integer.getInteger(PROPERTY_ID, 0);
+        if (id < 0 || id >= nodes.length) {
+            throw new IllegalArgumentException("Cluster id " + id + " is not in the node list");
+        }
+
+        Cluster cluster = new Cluster(id, nodes, delivery);
+        cluster.start();
+        return cluster;
+    }
+
+
+    /**
+     * Method to start listening for the other nodes, or connecting to the sequencer
+     */
+    private void start() throws IOException {
+        if (id == 0) {
+            ServerSocket serverSocket = new ServerSocket(nodes[0].getPort());
+            startThread(() -> acceptLinks(serverSocket), "cluster-accept");
+            System.out.println("Cluster sequencer listening on port " + nodes[0].getPort());
+        } else {
+            startThread(this::followSequencer, "cluster-link");
+        }
+    }
+
+
+    /**
+     * Method to put an event of a local client into the cluster order, it is delivered once it has its place
+     *
+     * @param event    message to fan out, must not be changed afterwards
+     * @param senderId local client that sent it
+     * @return false if too many events are waiting for the sequencer already and the event was dropped
+     */
+    public boolean publish(Map<String, String> event, String senderId) {
+        if (id == 0) {
+            order(event, id, null, senderId);
+            return true;
+        }
+
+        synchronized (this) {
+            if (pending.size() >= PENDING_CAPACITY) {
+                if (!refusing) {
+                    refusing = true;
+                    System.out.println("Cluster sequencer is not ordering events, refusing new ones");
+                }
+                return false;
+            }
+            refusing = false;
+
+            long local = ++localCount;
+            pending.put(local, new Pending(event, senderId));
+            if (sequencer != null) forward(sequencer, local, event);
+            return true;
+        }
+    }
+
+
+    /**
+     * Method to number an event and pass it on, runs on the sequencer only
+     *
+     * @param event    message without cluster fields
+     * @param node     node the event came from
+     * @param local    number the node gave the event, null for the sequencer's own events
+     * @param senderId local client that sent it, null for events of other nodes
+     */
+    private synchronized void order(Map<String, String> event, int node, String local, String senderId) {
+        String number = Long.toString(++sequence);
+
+        //the event is encoded once for all the nodes that did not send it
+        Frame forward = null;
+        for (Link peer : peers) {
+            if (peer.node == node) {
+                Map<String, String> ack = new HashMap<>();
+                ack.put(Server.KEY_TYPE, Server.METHOD_PEER_ACK);
+                ack.put(Server.KEY_LOCAL, local);
+                ack.put(Server.KEY_SEQUENCE, number);
+                peer.outbound.offer(Frame.of(ack));
+                continue;
+            }
+            if (forward == null) {
+                Map<String, String> map = new HashMap<>(event);
+                map.put(Server.KEY_NODE, Integer.toString(node));
+                map.put(Server.KEY_SEQUENCE, number);
+                forward = Frame.of(map);
+            }
+            peer.outbound.offer(forward);
+        }
+
+        //delivering inside the lock keeps the local order the same as the order sent to the peers
+        delivery.deliver(event, senderId);
+    }
+
+
+    /**
+     * Method to accept links from the other nodes, runs on the sequencer only
+     */
+    private void acceptLinks(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Link link = new Link(serverSocket.accept());
+                startThread(() -> readPeer(link), "cluster-peer");
+            } catch (IOException e) {
+                System.out.println("Error accepting cluster link");
+            }
+        }
+    }
+
+
+    /**
+     * Method to read the events a node forwards, runs on the sequencer only
+     */
+    private void readPeer(Link link) {
+        try {
+            Message hello = link.reader.next();
+            if (!hello.is(Server.METHOD_PEER_HELLO)) throw new IOException("Expected hello");
+            link.node = Integer.parseInt(hello.get(Server.KEY_NODE));
+            peers.add(link);
+            System.out.println("Cluster node " + link.node + " connected");
+
+            while (true) {
+                Map<String, String> event = link.reader.next().toMap();
+                String local = event.remove(Server.KEY_LOCAL);
+                order(event, link.node, local, null);
+            }
+        } catch (Exception e) {
+            peers.remove(link);
+            link.close();
+            System.out.println("Cluster node " + link.node + " disconnected");
+        }
+    }
+
+
+    /**
+     * Method to keep a link to the sequencer and deliver what comes over it, runs on the other nodes
+     */
+    private void followSequencer() {
+        while (true) {
+            Link link = null;
+            try {
+                Socket socket = new Socket();
+                socket.connect(nodes[0]);
+                link = new Link(socket);
+
+                Map<String, String> hello = new HashMap<>();
+                hello.put(Server.KEY_TYPE, Server.METHOD_PEER_HELLO);
+                hello.put(Server.KEY_NODE, Integer.toString(id));
+                link.outbound.offer(Frame.of(hello));
+
+                //events published while the link was down go first, in their original order
+                synchronized (this) {
+                    for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+                        forward(link, entry.getKey(), entry.getValue().event);
+                    }
+                    sequencer = link;
+                }
+                System.out.println("Cluster linked to sequencer " + nodes[0]);
+
+                //a restarted sequencer counts from the start again
+                lastSequence = 0;
+                while (true) {
+                    onSequenced(link.reader.next());
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    sequencer = null;
+                }
+                if (link != null) {
+                    link.close();
+                    System.out.println("Cluster link to sequencer lost");
+                }
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Method to deliver an event, or an acknowledgement of an own event, in the order the sequencer gave it
+     */
+    private void onSequenced(Message message) {
+        long number = Long.parseLong(message.get(Server.KEY_SEQUENCE));
+        if (lastSequence != 0 && number != lastSequence + 1) {
+            System.out.println("Cluster missed events " + (lastSequence + 1) + " to " + (number - 1));
+        }
+        lastSequence = number;
+
+        if (message.is(Server.METHOD_PEER_ACK)) {
+            Pending own;
+            synchronized (this) {
+                own = pending.remove(Long.parseLong(message.get(Server.KEY_LOCAL)));
+            }
+            if (own != null) delivery.deliver(own.event, own.senderId);
+            return;
+        }
+
+        Map<String, String> event = message.toMap();
+        event.remove(Server.KEY_NODE);
+        event.remove(Server.KEY_SEQUENCE);
+        delivery.deliver(event, null);
+    }
+
+
+    /**
+     * Method to send an own event to the sequencer
+     */
+    private void forward(Link link, long local, Map<String, String> event) {
+        Map<String, String> map = new HashMap<>(event);
+        map.put(Server.KEY_LOCAL, Long.toString(local));
+        link.outbound.offer(Frame.of(map));
+    }
+
+
+    private static void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
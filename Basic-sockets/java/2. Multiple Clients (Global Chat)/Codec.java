@@ -0,0 +1,438 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire codec shared by the server and the client.
+ * <p>
+ * Two formats can be spoken on the same socket:
+ * <ul>
+ *     <li>TEXT, the original {@code Map.toString()} line, e.g. {@code {type=send message, message=hi}}</li>
+ *     <li>BINARY, {@code [length:int32][type:byte]} followed by {@code [tag:byte][size:varint][utf-8 bytes]}
+ *     per field, where length counts the bytes after itself</li>
+ * </ul>
+ * A text frame always starts with '{' and a binary frame with 0, as frames are kept below
+ * 16 MB, so a reader can tell the format of every frame from its first byte.
+ * <p>
+ * Peers that agreed on compression in the get id and new user messages may also send
+ * {@code [1][length:int24][deflated frame]}, a frame of either format compressed with zlib.
+ * Only frames of at least the agreed threshold are compressed, small ones would not shrink.
+ */
+public final class Codec {
+
+    // Format of a frame on the wire
+    public enum Format {TEXT, BINARY}
+
+    //frames must stay below 16 MB so the first length byte is always 0
+    public static final int MAX_FRAME_LENGTH = (1 << 24) - 1;
+
+    //type and field codes used on the wire, only ever append to these tables
+    static final String[] TYPES = {
+            null,
+            Server.METHOD_GET_ID,
+            Server.METHOD_NEW_USER,
+            Server.METHOD_SEND_MSG,
+            Server.METHOD_FETCH_HISTORY,
+            Server.METHOD_PING,
+            Server.METHOD_PONG,
+            Server.METHOD_RATE_LIMITED,
+            Server.METHOD_STATS,
+            Server.METHOD_PEER_HELLO,
+            Server.METHOD_PEER_ACK,
+            Server.METHOD_DIRECT_MSG,
+    };
+    static final String[] KEYS = {
+            null,
+            Server.KEY_TYPE,
+            Server.KEY_USER_ID,
+            Server.KEY_USER_NAME,
+            Server.KEY_MESSAGE,
+            Server.KEY_OFFSET,
+            Server.KEY_COMPRESSION,
+            Server.KEY_NODE,
+            Server.KEY_LOCAL,
+            Server.KEY_SEQUENCE,
+            Server.KEY_TOKEN,
+            Server.KEY_TO,
+            Server.KEY_RESUMED,
+            Server.KEY_GRACE_MILLIS,
+    };
+
+    //tag of a field whose key is not in the table and is sent inline
+    static final int TAG_INLINE_KEY = 0;
+
+    //first byte of a compressed frame
+    static final byte COMPRESSED = 1;
+
+    //value of the compression field offered in get id and accepted in new user
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    //smallest frame compressed, e.g. -Dchat.compress.threshold=512, 0 turns compression off
+    public static final String PROPERTY_COMPRESS_THRESHOLD = "chat.compress.threshold";
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+    private Codec() {
+    }
+
+
+    /**
+     * Method to encode a message in the given format
+     *
+     * @param map    message to encode
+     * @param format format to encode in
+     * @return encoded frame including the newline or length prefix
+     */
+    public static byte[] encode(Map<String, String> map, Format format) {
+        if (format == Format.TEXT) {
+            return (map.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        //room for the length, filled in at the end
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+
+        int typeCode = indexOf(TYPES, map.get(Server.KEY_TYPE));
+        out.write(typeCode);
+
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+
+            //null values are simply left out, known types are already in the type byte
+            if (value == null) continue;
+            if (key.equals(Server.KEY_TYPE) && typeCode != 0) continue;
+
+            int tag = indexOf(KEYS, key);
+            out.write(tag);
+            if (tag == TAG_INLINE_KEY) {
+                writeString(out, key);
+            }
+            writeString(out, value);
+        }
+
+        byte[] frame = out.toByteArray();
+        int length = frame.length - 4;
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Message too large");
+        }
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+
+    /**
+     * Method to compress an encoded frame
+     * <p>
+     * Uses the fastest deflate level, a broadcast compresses once for all its recipients
+     * but the sender waits for it.
+     *
+     * @param frame encoded frame of either format
+     * @return compressed frame, or the frame itself if compressing does not make it smaller
+     */
+    public static byte[] compress(byte[] frame) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(frame);
+            deflater.finish();
+
+            //only worth it if the result is smaller, so the output never needs more room than the frame
+            byte[] out = new byte[frame.length];
+            int size = 4;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            if (!deflater.finished()) return frame;
+
+            int length = size - 4;
+            out[0] = COMPRESSED;
+            out[1] = (byte) (length >>> 16);
+            out[2] = (byte) (length >>> 8);
+            out[3] = (byte) length;
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * Method to restore the frame held by a compressed frame
+     *
+     * @param data     buffer holding the compressed frame
+     * @param offset   start of the compressed frame
+     * @param length   size of the compressed frame as returned by {@link #frameLength}
+     * @param inflater inflater to reuse, reset before use
+     * @return the single frame of either format that was compressed
+     */
+    public static byte[] inflate(byte[] data, int offset, int length, Inflater inflater) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset + 4, length - 4);
+
+        //the frame is limited like any other, whatever the compressed size
+        int limit = MAX_FRAME_LENGTH + 4;
+        byte[] out = new byte[Math.min(limit, Math.max(256, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    if (out.length == limit) throw new IOException("Frame too long");
+                    out = Arrays.copyOf(out, Math.min(limit, out.length * 2));
+                }
+                int count = inflater.inflate(out, size, out.length - size);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Bad compressed frame");
+                }
+                size += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame", e);
+        }
+
+        //a compressed frame holds exactly one uncompressed frame
+        if (size == 0 || out[0] == COMPRESSED || frameLength(out, 0, size) != size) {
+            throw new IOException("Bad compressed frame");
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+
+    /**
+     * Method to encode a message and write it to a stream
+     *
+     * @param out    stream to write to, not flushed
+     * @param map    message to write
+     * @param format format to encode in
+     */
+    public static void write(OutputStream out, Map<String, String> map, Format format) throws IOException {
+        out.write(encode(map, format));
+    }
+
+
+    /**
+     * Method to read the next frame from a stream, whatever its format
+     *
+     * @param in stream to read from
+     * @return decoded message
+     * @throws EOFException if the stream ended
+     */
+    public static Map<String, String> read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) throw new EOFException();
+
+        if (first == '{') {
+            return Utils.messageToMap(readLine(in, first));
+        }
+        if (first != 0 && first != COMPRESSED) {
+            throw new IOException("Unknown frame");
+        }
+
+        int length = (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        byte[] body = in.readNBytes(length);
+        if (body.length < length) throw new EOFException();
+        if (first == COMPRESSED) {
+            byte[] frame = new byte[length + 4];
+            frame[0] = COMPRESSED;
+            System.arraycopy(body, 0, frame, 4, length);
+            return decode(frame, 0, frame.length);
+        }
+        return decodeBody(body, 0, length);
+    }
+
+
+    /**
+     * Method to find the size of the first frame in a buffer, whatever its format
+     *
+     * @param data      buffer holding received bytes
+     * @param offset    start of the frame
+     * @param available number of received bytes from offset on
+     * @return size of the frame including its newline or length, -1 if not completely received yet
+     */
+    public static int frameLength(byte[] data, int offset, int available) throws IOException {
+        if (available == 0) return -1;
+
+        if (data[offset] == '{') {
+            for (int i = 0; i < available; i++) {
+                if (data[offset + i] == '\n') return i + 1;
+            }
+            if (available > MAX_FRAME_LENGTH) throw new IOException("Line too long");
+            return -1;
+        }
+        if (data[offset] != 0 && data[offset] != COMPRESSED) {
+            throw new IOException("Unknown frame");
+        }
+
+        if (available < 4) return -1;
+        int length = ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        return available >= length + 4 ? length + 4 : -1;
+    }
+
+
+    /**
+     * Method to decode one complete frame held in a buffer
+     *
+     * @param data   buffer holding the frame
+     * @param offset start of the frame
+     * @param length size of the frame as returned by {@link #frameLength}
+     * @return decoded message
+     */
+    public static Map<String, String> decode(byte[] data, int offset, int length) throws IOException {
+        if (data[offset] == COMPRESSED) {
+            Inflater inflater = new Inflater();
+            try {
+                byte[] frame = inflate(data, offset, length, inflater);
+                return decode(frame, 0, frame.length);
+            } finally {
+                inflater.end();
+            }
+        }
+        if (formatOf(data[offset]) == Format.BINARY) {
+            return decodeBody(data, offset + 4, length - 4);
+        }
+
+        //strip the newline and an optional carriage return
+        int end = offset + length - 1;
+        if (end > offset && data[end - 1] == '\r') end--;
+        return Utils.messageToMap(new String(data, offset, end - offset, StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Method to tell the format of a frame from its first byte
+     *
+     * @param first first byte of the frame
+     * @return format of the frame
+     */
+    public static Format formatOf(byte first) {
+        return first == 0 ? Format.BINARY : Format.TEXT;
+    }
+
+
+    /**
+     * Method to tell the format of the next frame without consuming it
+     *
+     * @param in stream supporting mark, e.g. a BufferedInputStream
+     * @return format of the next frame
+     */
+    public static Format peekFormat(InputStream in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        return first == 0 ? Format.BINARY : Format.TEXT;
+    }
+
+
+    /**
+     * Method to decode the body of a binary frame, i.e. everything after the length
+     *
+     * @param data   buffer holding the body
+     * @param offset start of the body
+     * @param length size of the body
+     * @return decoded message
+     */
+    private static Map<String, String> decodeBody(byte[] data, int offset, int length) throws IOException {
+        if (length < 1) throw new IOException("Bad frame");
+
+        Map<String, String> map = new HashMap<>();
+        int end = offset + length;
+        int[] position = {offset};
+
+        int typeCode = data[position[0]++] & 0xff;
+        if (typeCode != 0) {
+            map.put(Server.KEY_TYPE, lookup(TYPES, typeCode));
+        }
+
+        while (position[0] < end) {
+            int tag = data[position[0]++] & 0xff;
+            String key = tag == TAG_INLINE_KEY ? readString(data, position, end) : lookup(KEYS, tag);
+            map.put(key, readString(data, position, end));
+        }
+        return map;
+    }
+
+
+    private static String readLine(InputStream in, int first) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        line.write(first);
+
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException();
+            if (line.size() > MAX_FRAME_LENGTH) throw new IOException("Line too long");
+            line.write(b);
+        }
+
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (bytes[length - 1] == '\r') length--;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        //unsigned varint, 7 bits per byte, high bit set on all but the last
+        int size = bytes.length;
+        while ((size & ~0x7f) != 0) {
+            out.write((size & 0x7f) | 0x80);
+            size >>>= 7;
+        }
+        out.write(size);
+        out.write(bytes, 0, bytes.length);
+    }
+
+
+    private static String readString(byte[] data, int[] position, int end) throws IOException {
+        int size = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position[0] >= end || shift > 28) throw new IOException("Bad frame");
+            b = data[position[0]++];
+            size |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (size < 0 || size > end - position[0]) throw new IOException("Bad frame");
+        String value = new String(data, position[0], size, StandardCharsets.UTF_8);
+        position[0] += size;
+        return value;
+    }
+
+
+    static int indexOf(String[] table, String value) {
+        for (int i = 1; i < table.length; i++) {
+            if (table[i].equals(value)) return i;
+        }
+        return 0;
+    }
+
+
+    private static String lookup(String[] table, int code) throws IOException {
+        if (code >= table.length) throw new IOException("Unknown code " + code);
+        return table[code];
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fan-out of broadcasts split over several worker threads, for chats with many thousands of clients.
+ * <p>
+ * The segments of the {@link ClientRegistry} are dealt out to the shards, so every client belongs
+ * to exactly one shard. A broadcast is handed to every shard with one enqueue each, and each worker
+ * queues the frame for the clients of its own segments. The shards are fed under one lock and work
+ * through their queues in order, so every client gets the broadcasts in the order they were published.
+ * <p>
+ * Turned on with e.g. {@code -Dchat.fanout.shards=8}, without it the thread of the sender queues the
+ * frame for every client itself, which is cheaper for small chats.
+ */
+public class FanOut {
+
+    //settings read by the server, 0 shards leaves the fan-out on the thread of the sender
+    public static final String PROPERTY_SHARDS = "chat.fanout.shards";
+    public static final int DEFAULT_SHARDS = 0;
+
+    //broadcasts a shard may have waiting before publishing blocks
+    private static final int SHARD_QUEUE_CAPACITY = 1024;
+
+    // Broadcast shared by all the shards, the last one to finish records it
+    static final class Broadcast {
+        final Frame frame;
+        final String senderId;
+        final AtomicInteger remaining;
+        final AtomicInteger recipients = new AtomicInteger();
+
+        Broadcast(Frame frame, String senderId, int shards) {
+            this.frame = frame;
+            this.senderId = senderId;
+            this.remaining = new AtomicInteger(shards);
+        }
+
+        /**
+         * Method to report the recipients one shard queued the frame for
+         *
+         * @param count recipients of the shard
+         * @param stats stats to record the whole broadcast in once every shard is done
+         */
+        void done(int count, Stats stats) {
+            int total = recipients.addAndGet(count);
+            if (remaining.decrementAndGet() == 0) {
+                //the frame was created at the start of the broadcast
+                stats.broadcast(total, System.nanoTime() - frame.created());
+            }
+        }
+    }
+
+    // Shard with the broadcasts its worker has not sent yet
+    private static final class Shard {
+        final BlockingQueue<Broadcast> queue = new ArrayBlockingQueue<>(SHARD_QUEUE_CAPACITY);
+    }
+
+    private final Server server;
+    private final Shard[] shards;
+
+    //keeps the order of the broadcasts the same in every shard
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    private FanOut(Server server, int count) {
+        this.server = server;
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard();
+            int shard = i;
+            Thread thread = new Thread(() -> work(shard), "fanout-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Method to create the fan-out described by the system properties
+     *
+     * @param server server whose clients get the broadcasts
+     * @return fan-out with its workers started, null if it is turned off
+     */
+    public static FanOut fromProperties(Server server) {
+        int shards = Math.min(Integer.getInteger(PROPERTY_SHARDS, DEFAULT_SHARDS), ClientRegistry.SEGMENT_COUNT);
+        if (shards <= 0) return null;
+        return new FanOut(server, shards);
+    }
+
+
+    /**
+     * Method to hand a broadcast to every shard
+     * <p>
+     * Blocks while a shard has a full queue, so a sender cannot run further ahead of the workers.
+     * The frame is recorded in the history and the journal under the same lock, so they keep the
+     * broadcasts in the order the clients get them.
+     *
+     * @param frame    frame to send
+     * @param senderId id of the sender, who does not get the frame, null for messages from other nodes
+     */
+    public void publish(Frame frame, String senderId) throws InterruptedException {
+        Broadcast broadcast = new Broadcast(frame, senderId, shards.length);
+        publishLock.lock();
+        try {
+            server.record(frame);
+            for (Shard shard : shards) {
+                shard.queue.put(broadcast);
+            }
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    /**
+     * Method to queue the broadcasts of one shard for its clients, runs on the worker of the shard
+     */
+    private void work(int shard) {
+        BlockingQueue<Broadcast> queue = shards[shard].queue;
+        int[] recipients = {0};
+        while (true) {
+            Broadcast broadcast;
+            try {
+                broadcast = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            recipients[0] = 0;
+            server.clients.forEach(shard, shards.length, client -> {
+                //send the message to all the clients except the sender and those still entering a name
+                if (client.clientId.equals(broadcast.senderId)) return;
+                if (client.clientName == null) return;
+
+                try {
+                    server.sendFrame(client, broadcast.frame);
+                    recipients[0]++;
+                } catch (Exception e) {
+                    System.out.println("Error broadcasting message");
+                }
+            });
+            broadcast.done(recipients[0], server.stats);
+        }
+    }
+}
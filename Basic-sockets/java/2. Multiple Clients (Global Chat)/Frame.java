@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Message already encoded to the bytes that go over the socket.
+ * <p>
+ * A frame never changes once created, so a broadcast encodes its message a single time
+ * and writes the very same bytes to every recipient. Each {@link Codec.Format} is encoded
+ * the first time a recipient speaking it needs the frame, and compressed the first time a
+ * recipient that agreed on compression needs it.
+ * <p>
+ * A frame can also wrap bytes that are already encoded, e.g. frames replayed from the
+ * off-heap {@link HistoryRing}. Those are sent as they are whatever the recipient speaks,
+ * which every reader accepts as the format is told apart per frame. They are never compressed.
+ */
+public final class Frame {
+    private final Map<String, String> message;
+
+    //already encoded bytes, null for frames created from a message
+    private final ByteBuffer encoded;
+
+    //System.nanoTime() at creation, for measuring how long the frame took to reach the sockets
+    private final long created;
+    private final boolean timed;
+
+    //encodings by format, racing threads at worst encode the same bytes twice
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    //compressed encodings, shared by all the recipients that agreed on compression
+    private volatile byte[] compressedText;
+    private volatile byte[] compressedBinary;
+
+    private Frame(Map<String, String> message, ByteBuffer encoded, boolean timed) {
+        this.message = message;
+        this.encoded = encoded;
+        this.timed = timed;
+        this.created = timed ? System.nanoTime() : 0;
+    }
+
+
+    /**
+     * Method to create a frame for a message, the map must not be changed afterwards
+     *
+     * @param map message of the frame
+     * @return frame for the message
+     */
+    public static Frame of(Map<String, String> map) {
+        return new Frame(map, null, true);
+    }
+
+
+    /**
+     * Method to create a frame that is kept and sent again and again, such as a ping
+     * <p>
+     * Its age says nothing about queueing, so it is left out of the delivery latency.
+     *
+     * @param map message of the frame
+     * @return frame for the message
+     */
+    public static Frame constant(Map<String, String> map) {
+        return new Frame(map, null, false);
+    }
+
+
+    /**
+     * Method to create a frame for bytes that are already encoded, the buffer must not be changed afterwards
+     *
+     * @param bytes one or more complete frames between position and limit
+     * @return frame sending the bytes unchanged
+     */
+    public static Frame wrap(ByteBuffer bytes) {
+        return new Frame(null, bytes, true);
+    }
+
+
+    /**
+     * Method to tell whether the time the frame was created is measured
+     *
+     * @return false for constant frames
+     */
+    public boolean timed() {
+        return timed;
+    }
+
+
+    /**
+     * Method to get the time the frame was created
+     *
+     * @return System.nanoTime() at creation
+     */
+    public long created() {
+        return created;
+    }
+
+
+    /**
+     * Method to get the encoded bytes of the frame
+     *
+     * @param format wire format of the recipient
+     * @return encoded frame, must not be modified
+     */
+    public byte[] bytes(Codec.Format format) {
+        if (encoded != null) {
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(encoded.position(), bytes);
+            return bytes;
+        }
+        if (format == Codec.Format.TEXT) {
+            byte[] bytes = text;
+            if (bytes == null) text = bytes = Codec.encode(message, format);
+            return bytes;
+        }
+        byte[] bytes = binary;
+        if (bytes == null) binary = bytes = Codec.encode(message, format);
+        return bytes;
+    }
+
+
+    /**
+     * Method to get the bytes sent to a recipient, compressed if the recipient takes compressed frames of that size
+     *
+     * @param format    wire format of the recipient
+     * @param threshold smallest frame compressed for the recipient, 0 if it does not take compressed frames
+     * @return encoded frame, must not be modified
+     */
+    public byte[] bytes(Codec.Format format, int threshold) {
+        byte[] bytes = bytes(format);
+        if (threshold <= 0 || encoded != null || bytes.length < threshold) return bytes;
+
+        if (format == Codec.Format.TEXT) {
+            byte[] compressed = compressedText;
+            if (compressed == null) compressedText = compressed = Codec.compress(bytes);
+            return compressed;
+        }
+        byte[] compressed = compressedBinary;
+        if (compressed == null) compressedBinary = compressed = Codec.compress(bytes);
+        return compressed;
+    }
+
+
+    /**
+     * Method to get the encoded size of the frame
+     *
+     * @param format wire format of the recipient
+     * @return number of bytes
+     */
+    public int length(Codec.Format format) {
+        return length(format, 0);
+    }
+
+
+    /**
+     * Method to get the size of the frame as sent to a recipient
+     *
+     * @param format    wire format of the recipient
+     * @param threshold smallest frame compressed for the recipient, 0 if it does not take compressed frames
+     * @return number of bytes
+     */
+    public int length(Codec.Format format, int threshold) {
+        if (encoded != null) return encoded.remaining();
+        return bytes(format, threshold).length;
+    }
+
+
+    /**
+     * Method to write the whole frame to a stream, the caller decides when to flush
+     *
+     * @param out    stream to write to
+     * @param format wire format of the recipient
+     */
+    public void writeTo(OutputStream out, Codec.Format format) throws IOException {
+        writeTo(out, format, 0);
+    }
+
+
+    /**
+     * Method to write the whole frame to a stream, compressed if the recipient takes compressed frames of its size
+     *
+     * @param out       stream to write to
+     * @param format    wire format of the recipient
+     * @param threshold smallest frame compressed for the recipient, 0 if it does not take compressed frames
+     */
+    public void writeTo(OutputStream out, Codec.Format format, int threshold) throws IOException {
+        if (encoded == null) {
+            out.write(bytes(format, threshold));
+            return;
+        }
+
+        //a stream only takes arrays, so go through a small chunk instead of copying the whole buffer
+        byte[] chunk = new byte[Math.min(8192, encoded.remaining())];
+        for (int offset = 0; offset < encoded.remaining(); offset += chunk.length) {
+            int count = Math.min(chunk.length, encoded.remaining() - offset);
+            encoded.get(encoded.position() + offset, chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+
+    /**
+     * Method to copy as much of the frame as fits into a buffer
+     *
+     * @param target buffer to copy into
+     * @param offset first byte of the frame to copy
+     * @param format wire format of the recipient
+     * @return number of bytes copied
+     */
+    public int copyTo(ByteBuffer target, int offset, Codec.Format format) {
+        if (encoded != null) {
+            int count = Math.min(target.remaining(), encoded.remaining() - offset);
+            target.put(target.position(), encoded, encoded.position() + offset, count);
+            target.position(target.position() + count);
+            return count;
+        }
+
+        byte[] bytes = bytes(format);
+        int count = Math.min(target.remaining(), bytes.length - offset);
+        target.put(bytes, offset, count);
+        return count;
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle detection of one connection, driven by a single timer on a {@link TimingWheel}.
+ * <p>
+ * Receiving a message only records the time, nothing is rescheduled per message. When the
+ * timer fires after a quiet period the connection is sent a ping, and if it still has not
+ * sent anything, a pong or otherwise, by the time the ping times out it is evicted. This also
+ * finds half-open connections, whose reads would otherwise block forever.
+ */
+public class Heartbeat implements Runnable {
+
+    //settings read by the servers, e.g. -Dchat.heartbeat.idle.millis=30000, an idle time of 0 turns heartbeats off
+    public static final String PROPERTY_IDLE_MILLIS = "chat.heartbeat.idle.millis";
+    public static final String PROPERTY_TIMEOUT_MILLIS = "chat.heartbeat.timeout.millis";
+    public static final long DEFAULT_IDLE_MILLIS = 60_000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+
+    //ping sent to every idle connection, encoded only once
+    static final Frame PING = Frame.constant(ping());
+
+    private final TimingWheel wheel;
+    private final long idleMillis;
+    private final long timeoutMillis;
+    private final Runnable ping;
+    private final Runnable evict;
+
+    //time the last message was received
+    private volatile long lastSeen = System.nanoTime();
+
+    //whether a ping is waiting for an answer and when it was sent, only touched by the wheel thread
+    private boolean pinged;
+    private long pingedAt;
+
+    private volatile TimingWheel.Timeout timeout;
+    private volatile boolean stopped;
+
+    /**
+     * @param wheel         wheel running the timer
+     * @param idleMillis    quiet time before a ping is sent
+     * @param timeoutMillis time to answer the ping
+     * @param ping          sends the ping to the connection, runs on the wheel thread so it must not wait for the client
+     * @param evict         disconnects the connection, hands anything that may block over to another thread
+     */
+    public Heartbeat(TimingWheel wheel, long idleMillis, long timeoutMillis, Runnable ping, Runnable evict) {
+        this.wheel = wheel;
+        this.idleMillis = idleMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.ping = ping;
+        this.evict = evict;
+    }
+
+
+    /**
+     * Method to start watching the connection
+     */
+    public void start() {
+        timeout = wheel.schedule(this, idleMillis);
+    }
+
+
+    /**
+     * Method to record that a message was received, called for every message
+     */
+    public void seen() {
+        lastSeen = System.nanoTime();
+    }
+
+
+    /**
+     * Method to stop watching the connection
+     */
+    public void stop() {
+        stopped = true;
+        TimingWheel.Timeout current = timeout;
+        if (current != null) current.cancel();
+    }
+
+
+    /**
+     * Timer task, runs on the wheel thread
+     */
+    @Override
+    public void run() {
+        if (stopped) return;
+        long now = System.nanoTime();
+        long seen = lastSeen;
+
+        //nothing received since the ping
+        if (pinged && seen - pingedAt < 0) {
+            evict.run();
+            return;
+        }
+        pinged = false;
+
+        //heard from the connection lately, check again once it could have become idle
+        long quiet = TimeUnit.NANOSECONDS.toMillis(now - seen);
+        if (quiet < idleMillis) {
+            timeout = wheel.schedule(this, idleMillis - quiet);
+            return;
+        }
+
+        pinged = true;
+        pingedAt = now;
+        ping.run();
+        timeout = wheel.schedule(this, timeoutMillis);
+    }
+
+
+    private static Map<String, String> ping() {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_PING);
+        return map;
+    }
+}
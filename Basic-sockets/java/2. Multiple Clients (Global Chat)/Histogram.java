@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with a bounded relative error, in the style of HdrHistogram.
+ * <p>
+ * Buckets are log-linear: every power of two is split into 32 equal sub-buckets, so a value
+ * is placed within about 3% of its size whatever its magnitude, and recording is a shift, a
+ * leading zero count and one atomic increment. Values from 0 up to {@link Long#MAX_VALUE} fit
+ * into 1888 counters.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * (64 - SUB_BUCKET_BITS));
+
+
+    /**
+     * Method to count one value
+     *
+     * @param value value to count, negative values count as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+
+    /**
+     * Method to copy the counts, values recorded meanwhile may or may not be included
+     *
+     * @return snapshot of the counts
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+
+    // Counts of a histogram at one point in time
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) sum += count;
+            this.total = sum;
+        }
+
+
+        /**
+         * Method to get the number of values counted
+         *
+         * @return count
+         */
+        public long count() {
+            return total;
+        }
+
+
+        /**
+         * Method to get the value below which a share of the counted values lie
+         *
+         * @param percentile share between 0 and 100
+         * @return highest value of the bucket holding the percentile, 0 if nothing was counted
+         */
+        public long percentile(double percentile) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValue(i);
+            }
+            return highestValue(counts.length - 1);
+        }
+
+
+        /**
+         * Method to get the mean of the counted values, using the middle of each bucket
+         *
+         * @return mean, 0 if nothing was counted
+         */
+        public double mean() {
+            if (total == 0) return 0;
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) sum += counts[i] * ((lowestValue(i) + (double) highestValue(i)) / 2);
+            }
+            return sum / total;
+        }
+    }
+
+
+    /**
+     * Method to find the bucket of a value, values below 32 get a bucket each
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Recent broadcast frames kept in a fixed size off-heap buffer, replayed to users joining the chat.
+ * <p>
+ * The buffer is allocated once with the configured number of bytes and the oldest frames are
+ * overwritten as new ones arrive, so memory use is the same at any message rate. Frames are
+ * stored already encoded, as records of
+ * {@code [text length:int32][binary length:int32][time:int64][text bytes][binary bytes]}.
+ * A record never wraps around the end of the buffer, the unused end is skipped instead.
+ * <p>
+ * Record positions only ever grow, the index in the buffer is the position modulo its capacity.
+ */
+public class HistoryRing {
+
+    //settings read by the servers, e.g. -Dchat.history.bytes=4194304 -Dchat.history.messages=100
+    public static final String PROPERTY_BYTES = "chat.history.bytes";
+    public static final String PROPERTY_MESSAGES = "chat.history.messages";
+    public static final String PROPERTY_SECONDS = "chat.history.seconds";
+    public static final int DEFAULT_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MESSAGES = 50;
+
+    private static final int HEADER = 16;
+
+    //marks the skipped end of the buffer when a record did not fit before it
+    private static final int PADDING = -1;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+
+    //at most this many of the most recent frames are replayed, 0 for no limit
+    private final int maxMessages;
+
+    //only frames younger than this are replayed, 0 for no limit
+    private final long maxAgeMillis;
+
+    //position of the oldest record and of the next record, guarded by this
+    private long oldest;
+    private long write;
+    private int count;
+
+    public HistoryRing(int capacity, int maxMessages, long maxAgeSeconds) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.capacity = capacity;
+        this.maxMessages = maxMessages;
+        this.maxAgeMillis = maxAgeSeconds * 1000;
+    }
+
+
+    /**
+     * Method to create a ring from the chat.history.* system properties
+     *
+     * @return configured ring, null if the history is turned off with a size of 0
+     */
+    public static HistoryRing fromProperties() {
+        int bytes = Integer.getInteger(PROPERTY_BYTES, DEFAULT_BYTES);
+        if (bytes <= 0) return null;
+        return new HistoryRing(bytes, Integer.getInteger(PROPERTY_MESSAGES, DEFAULT_MESSAGES),
+                Long.getLong(PROPERTY_SECONDS, 0));
+    }
+
+
+    /**
+     * Method to get the position the next frame will be stored at
+     * <p>
+     * Frames appended before a position was taken are exactly those stored below it.
+     *
+     * @return current position
+     */
+    public synchronized long position() {
+        return write;
+    }
+
+
+    /**
+     * Method to store a broadcast frame, overwriting the oldest frames when the buffer is full
+     *
+     * @param frame frame to store, a frame larger than the whole buffer is not stored
+     */
+    public void append(Frame frame) {
+        //encode outside the lock, the frame caches the bytes for its recipients anyway
+        byte[] text = frame.bytes(Codec.Format.TEXT);
+        byte[] binary = frame.bytes(Codec.Format.BINARY);
+        int size = HEADER + text.length + binary.length;
+        if (size > capacity) return;
+        long time = System.currentTimeMillis();
+
+        synchronized (this) {
+            //skip the end of the buffer if the record does not fit before it
+            int left = capacity - index(write);
+            long start = left < size ? write + left : write;
+
+            //free the space of the oldest records the new one overlaps
+            while (count > 0 && start + size - oldest > capacity) {
+                oldest = next(oldest);
+                count--;
+            }
+            if (count == 0) oldest = start;
+            if (start != write && left >= HEADER) buffer.putInt(index(write), PADDING);
+
+            int index = index(start);
+            buffer.putInt(index, text.length);
+            buffer.putInt(index + 4, binary.length);
+            buffer.putLong(index + 8, time);
+            buffer.put(index + HEADER, text);
+            buffer.put(index + HEADER + text.length, binary);
+
+            write = start + size;
+            count++;
+        }
+    }
+
+
+    /**
+     * Method to collect the recent frames stored below a position for replay
+     * <p>
+     * The frames are copied from the ring into a heap array sized to them, so they stay intact
+     * when the ring overwrites them. The only off-heap memory stays the ring itself, however
+     * many clients join at once, and the copy is collected like any other frame once sent.
+     *
+     * @param before position taken when the client joined, later frames reach it live
+     * @param format wire format of the client
+     * @return one frame holding all replayed frames back to back, null if there is nothing to replay
+     */
+    public synchronized Frame replay(long before, Codec.Format format) {
+        //count the stored records below the position
+        int stored = 0;
+        for (long position = oldest; stored < count && position < before; position = next(position)) {
+            stored++;
+        }
+        if (stored == 0) return null;
+
+        //skip the records beyond the message limit and those older than the age limit
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        int skip = maxMessages > 0 ? Math.max(0, stored - maxMessages) : 0;
+        long first = oldest;
+        while (skip > 0 || (stored > 0 && buffer.getLong(index(first) + 8) < cutoff)) {
+            first = next(first);
+            stored--;
+            if (skip > 0) skip--;
+        }
+        if (stored == 0) return null;
+
+        int total = 0;
+        long position = first;
+        for (int i = 0; i < stored; i++, position = next(position)) {
+            total += length(index(position), format);
+        }
+
+        //copy the records of the client's format straight from the ring
+        ByteBuffer frames = ByteBuffer.allocate(total);
+        position = first;
+        for (int i = 0; i < stored; i++, position = next(position)) {
+            int index = index(position);
+            int length = length(index, format);
+            int offset = format == Codec.Format.TEXT ? HEADER : HEADER + buffer.getInt(index);
+            frames.put(frames.position(), buffer, index + offset, length);
+            frames.position(frames.position() + length);
+        }
+        frames.flip();
+        return Frame.wrap(frames);
+    }
+
+
+    /**
+     * Method to get the position of the record after the one at a position
+     */
+    private long next(long position) {
+        int index = index(position);
+        long after = position + HEADER + buffer.getInt(index) + buffer.getInt(index + 4);
+        if (after >= write) return after;
+
+        //the record may be followed by the skipped end of the buffer
+        int left = capacity - index(after);
+        if (left < HEADER || buffer.getInt(index(after)) == PADDING) return after + left;
+        return after;
+    }
+
+
+    private int length(int index, Codec.Format format) {
+        return buffer.getInt(format == Codec.Format.TEXT ? index : index + 4);
+    }
+
+
+    private int index(long position) {
+        return (int) (position % capacity);
+    }
+}
@@ -0,0 +1,542 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of broadcast frames in memory-mapped segment files, so chat history
+ * survives a restart of the server.
+ * <p>
+ * Every frame gets the next offset, starting at 0. Broadcasts only put their frame on a queue,
+ * a single writer thread encodes it and copies it into the mapped file of the current segment,
+ * and forces the file to disk every fsync interval. A crash therefore loses at most the frames
+ * of the last interval. Broadcasts never wait for the writer: while its queue is full frames
+ * are dropped and counted, and once the writer failed nothing more is queued.
+ * <p>
+ * A segment file is named after the offset of its first frame and starts with a header of
+ * {@code [magic:int32][unused:int32][base offset:int64][checkpoint position:int32][unused:int32][checkpoint offset:int64]},
+ * followed by records of
+ * {@code [length:int32][crc32c:int32][offset:int64][text length:int32][text bytes][binary bytes]},
+ * where length counts the bytes after itself. The checkpoint is written after each fsync, so on
+ * startup only the records of the last segment behind its checkpoint are scanned and checked.
+ */
+public class Journal implements Runnable {
+
+    //settings read by the servers, e.g. -Dchat.journal.dir=journal -Dchat.journal.fsync.millis=200
+    public static final String PROPERTY_DIR = "chat.journal.dir";
+    public static final String PROPERTY_SEGMENT_BYTES = "chat.journal.segment.bytes";
+    public static final String PROPERTY_FSYNC_MILLIS = "chat.journal.fsync.millis";
+    public static final String PROPERTY_SEGMENTS = "chat.journal.segments";
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_FSYNC_MILLIS = 1000;
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    //most frames and bytes returned by one read
+    public static final int MAX_READ_FRAMES = 1000;
+    public static final int MAX_READ_BYTES = 1024 * 1024;
+
+    private static final int MAGIC = 0x43484a31;
+    private static final int SEGMENT_HEADER = 32;
+    private static final int CHECKPOINT_POSITION = 16;
+    private static final int CHECKPOINT_OFFSET = 24;
+    private static final int RECORD_HEADER = 20;
+
+    //readers remember the position of every 64th record of a segment
+    private static final int INDEX_INTERVAL = 64;
+
+    // One mapped segment file
+    static class Segment {
+        Path path;
+        long base;
+        MappedByteBuffer buffer;
+
+        //records are complete up to end, and next is the offset of the record that goes there
+        volatile int end;
+        volatile long next;
+
+        //position of every INDEX_INTERVAL-th record, built by readers up to indexEnd, guarded by the segment
+        int[] index = new int[16];
+        int indexCount;
+        int indexEnd = SEGMENT_HEADER;
+        long indexOffset;
+    }
+
+    // Frames read from the journal and the offset to continue reading from
+    static class Batch {
+        Frame frame;
+        long next;
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long fsyncNanos;
+    private final int maxSegments;
+
+    //segments from oldest to newest, replaced as a whole when a segment is added or deleted
+    private volatile Segment[] segments;
+
+    //frames waiting for the writer thread
+    private final ArrayBlockingQueue<Frame> pending = new ArrayBlockingQueue<>(64 * 1024);
+
+    //queued by close behind the last frames, the writer is not interrupted as that would close the mapped files
+    private static final Frame STOP = Frame.wrap(ByteBuffer.allocate(0));
+
+    private final CRC32C crc = new CRC32C();
+    private volatile Thread writer;
+
+    //set by close or when the writer stops on an error, appends are ignored from then on
+    private volatile boolean closed;
+
+    //frames not recorded because the queue was full
+    private final LongAdder dropped = new LongAdder();
+
+    private Journal(Path dir, int segmentBytes, long fsyncMillis, int maxSegments) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.maxSegments = maxSegments;
+    }
+
+
+    /**
+     * Method to open the journal set by the chat.journal.* system properties and start its writer thread
+     *
+     * @return running journal, null if no directory is set
+     */
+    public static Journal fromProperties() throws IOException {
+        String dir = System.getProperty(PROPERTY_DIR);
+        if (dir == null) return null;
+
+        Journal journal = open(Paths.get(dir),
+                Integer.getInteger(PROPERTY_SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES),
+                Long.getLong(PROPERTY_FSYNC_MILLIS, DEFAULT_FSYNC_MILLIS),
+                Integer.getInteger(PROPERTY_SEGMENTS, DEFAULT_SEGMENTS));
+        journal.start();
+        return journal;
+    }
+
+
+    /**
+     * Method to open a journal directory, recovering the tail of its last segment
+     *
+     * @param dir          directory of the segment files, created if missing
+     * @param segmentBytes size of each segment file
+     * @param fsyncMillis  how often written frames are forced to disk
+     * @param maxSegments  oldest segments beyond this count are deleted, 0 keeps all
+     * @return opened journal, its writer thread is not started yet
+     */
+    public static Journal open(Path dir, int segmentBytes, long fsyncMillis, int maxSegments) throws IOException {
+        Journal journal = new Journal(dir, segmentBytes, fsyncMillis, maxSegments);
+        Files.createDirectories(dir);
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().forEach(files::add);
+        }
+
+        Segment[] segments = new Segment[files.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = journal.load(files.get(i));
+        }
+        if (segments.length == 0) {
+            segments = new Segment[]{journal.create(0)};
+        } else {
+            journal.recover(segments[segments.length - 1]);
+        }
+        journal.segments = segments;
+        return journal;
+    }
+
+
+    /**
+     * Method to start the writer thread, frames still queued at shutdown are written and forced first
+     */
+    public void start() {
+        Thread thread = new Thread(this, "chat-journal");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+
+    /**
+     * Method to queue a frame for the journal, never waits
+     * <p>
+     * Callers hold the broadcast locks, so a frame the writer has no room for is dropped and
+     * counted instead of stalling every broadcast behind a slow disk.
+     *
+     * @param frame broadcast frame to record
+     */
+    public void append(Frame frame) {
+        if (closed) return;
+        if (!pending.offer(frame)) dropped.increment();
+    }
+
+
+    /**
+     * Method to get the number of frames dropped because the writer was behind
+     *
+     * @return dropped frames
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+
+    /**
+     * Method to get the offset the next recorded frame will get
+     *
+     * @return next offset
+     */
+    public long nextOffset() {
+        Segment[] all = segments;
+        return all[all.length - 1].next;
+    }
+
+
+    /**
+     * Method to read the frames recorded from an offset on
+     * <p>
+     * The frames are copied straight from the mapped files into one heap buffer of their size in the
+     * format of the client. Offsets older than the oldest kept segment start at its first frame.
+     *
+     * @param offset offset of the first frame to read
+     * @param format wire format of the client
+     * @return frames, null when there are none, and the offset to read the following frames from
+     */
+    public Batch read(long offset, Codec.Format format) {
+        Segment[] all = segments;
+        int first = 0;
+        while (first + 1 < all.length && all[first + 1].base <= offset) first++;
+        offset = Math.min(Math.max(offset, all[first].base), all[all.length - 1].next);
+        int start = seek(all[first], offset);
+
+        //find how many bytes the frames take, the segments keep growing meanwhile so remember where to stop
+        int frames = 0;
+        int total = 0;
+        int last = first;
+        int position = start;
+        int stop = start;
+        long next = offset;
+        while (frames < MAX_READ_FRAMES && total < MAX_READ_BYTES) {
+            Segment segment = all[last];
+            if (position >= segment.end) {
+                if (last + 1 == all.length) break;
+                last++;
+                position = SEGMENT_HEADER;
+                continue;
+            }
+            total += length(segment.buffer, position, format);
+            position += 4 + segment.buffer.getInt(position);
+            stop = position;
+            next++;
+            frames++;
+        }
+
+        Batch batch = new Batch();
+        batch.next = next;
+        if (frames == 0) return batch;
+
+        //a heap buffer of exactly the frames read, collected once the client was sent them
+        ByteBuffer bytes = ByteBuffer.allocate(total);
+        position = start;
+        for (int i = first; i <= last; i++) {
+            ByteBuffer buffer = all[i].buffer;
+            int end = i == last ? stop : all[i].end;
+            for (; position < end; position += 4 + buffer.getInt(position)) {
+                int length = length(buffer, position, format);
+                int textLength = buffer.getInt(position + 16);
+                int from = position + RECORD_HEADER + (format == Codec.Format.TEXT ? 0 : textLength);
+                bytes.put(bytes.position(), buffer, from, length);
+                bytes.position(bytes.position() + length);
+            }
+            position = SEGMENT_HEADER;
+        }
+        bytes.flip();
+        batch.frame = Frame.wrap(bytes);
+        return batch;
+    }
+
+
+    /**
+     * Method to stop the journal, waiting until the queued frames are written and forced
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        Thread thread = writer;
+        if (thread != null && thread.isAlive()) {
+            //the writer may have died meanwhile and stopped draining, so do not wait for room forever
+            while (!pending.offer(STOP, 100, TimeUnit.MILLISECONDS)) {
+                if (!thread.isAlive()) return;
+            }
+            thread.join();
+        }
+    }
+
+
+    /**
+     * Writer loop, records queued frames and forces them to disk every interval
+     */
+    @Override
+    public void run() {
+        try {
+            boolean dirty = false;
+            long nextSync = System.nanoTime() + fsyncNanos;
+            while (true) {
+                Frame frame;
+                try {
+                    frame = pending.poll(Math.max(0, nextSync - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (frame == STOP) break;
+                if (frame != null) {
+                    write(frame);
+                    dirty = true;
+                }
+                if (System.nanoTime() - nextSync >= 0) {
+                    if (dirty) sync(active());
+                    dirty = false;
+                    nextSync = System.nanoTime() + fsyncNanos;
+                }
+            }
+
+            //closing, write what is left
+            Frame frame;
+            while ((frame = pending.poll()) != null) {
+                if (frame != STOP) write(frame);
+            }
+            sync(active());
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error writing chat journal, no more frames are recorded");
+        } finally {
+            //nothing drains the queue any more
+            closed = true;
+            pending.clear();
+        }
+    }
+
+
+    /**
+     * Method to record one frame in the current segment, starting a new segment when it is full
+     */
+    private void write(Frame frame) throws IOException {
+        byte[] text = frame.bytes(Codec.Format.TEXT);
+        byte[] binary = frame.bytes(Codec.Format.BINARY);
+        int size = RECORD_HEADER + text.length + binary.length;
+        if (SEGMENT_HEADER + size > segmentBytes) {
+            System.out.println("Frame too large for the chat journal");
+            return;
+        }
+
+        Segment segment = active();
+        if (segment.end + size > segmentBytes) {
+            segment = roll(segment);
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.end;
+        buffer.putLong(position + 8, segment.next);
+        buffer.putInt(position + 16, text.length);
+        buffer.put(position + RECORD_HEADER, text);
+        buffer.put(position + RECORD_HEADER + text.length, binary);
+
+        crc.reset();
+        crc.update(buffer.slice(position + 8, size - 8));
+        buffer.putInt(position + 4, (int) crc.getValue());
+
+        //the length goes last, a record without it is not there yet
+        buffer.putInt(position, size - 4);
+
+        //publish the record to readers
+        segment.next++;
+        segment.end = position + size;
+    }
+
+
+    /**
+     * Method to force a segment to disk and checkpoint how far it is complete
+     */
+    private void sync(Segment segment) {
+        segment.buffer.force();
+        segment.buffer.putInt(CHECKPOINT_POSITION, segment.end);
+        segment.buffer.putLong(CHECKPOINT_OFFSET, segment.next);
+        segment.buffer.force(0, SEGMENT_HEADER);
+    }
+
+
+    /**
+     * Method to close the full segment and continue in a new one, deleting the oldest beyond the limit
+     */
+    private Segment roll(Segment full) throws IOException {
+        sync(full);
+        Segment segment = create(full.next);
+
+        Segment[] all = segments;
+        int from = maxSegments > 0 ? Math.max(0, all.length + 1 - maxSegments) : 0;
+        Segment[] updated = Arrays.copyOfRange(all, from, all.length + 1);
+        updated[updated.length - 1] = segment;
+        segments = updated;
+
+        //readers still holding a deleted segment keep its mapping until they are done
+        for (int i = 0; i < from; i++) {
+            try {
+                Files.deleteIfExists(all[i].path);
+            } catch (IOException e) {
+                System.out.println("Error deleting old chat journal segment");
+            }
+        }
+        return segment;
+    }
+
+
+    private Segment create(long base) throws IOException {
+        Path path = dir.resolve(String.format("%020d.log", base));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(segmentBytes);
+        }
+
+        Segment segment = new Segment();
+        segment.path = path;
+        segment.buffer = map(path);
+        segment.base = segment.next = segment.indexOffset = base;
+        segment.end = SEGMENT_HEADER;
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putLong(8, base);
+        sync(segment);
+        return segment;
+    }
+
+
+    /**
+     * Method to map an existing segment file, taking its extent from the checkpoint in its header
+     */
+    private Segment load(Path path) throws IOException {
+        Segment segment = new Segment();
+        segment.path = path;
+        segment.buffer = map(path);
+        if (segment.buffer.capacity() < SEGMENT_HEADER || segment.buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a journal segment: " + path);
+        }
+
+        segment.base = segment.indexOffset = segment.buffer.getLong(8);
+        segment.end = segment.buffer.getInt(CHECKPOINT_POSITION);
+        segment.next = segment.buffer.getLong(CHECKPOINT_OFFSET);
+        return segment;
+    }
+
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+
+    /**
+     * Method to find the complete records written after the last checkpoint of a segment
+     * <p>
+     * Scanning stops at the first record that is missing, cut short or fails its checksum, and
+     * whatever was written behind it is cleared so that new records cannot be mistaken for old ones.
+     */
+    private void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.end;
+        long next = segment.next;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER - 4 || position + 4 + length > buffer.capacity()) break;
+            if (buffer.getLong(position + 8) != next) break;
+
+            crc.reset();
+            crc.update(buffer.slice(position + 8, length - 4));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+
+            position += 4 + length;
+            next++;
+        }
+
+        //clear the torn tail page by page until a page is already empty
+        for (int page = position; page < buffer.capacity(); page += 4096) {
+            boolean empty = true;
+            for (int i = page; i < Math.min(page + 4096, buffer.capacity()); i++) {
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                    empty = false;
+                }
+            }
+            if (empty) break;
+        }
+
+        segment.end = position;
+        segment.next = next;
+        sync(segment);
+    }
+
+
+    /**
+     * Method to find the position of the record with an offset, the end of the segment if it is not written yet
+     */
+    private int seek(Segment segment, long offset) {
+        int position;
+        long skip;
+        synchronized (segment) {
+            //extend the index over the records written since the last read
+            MappedByteBuffer buffer = segment.buffer;
+            int end = segment.end;
+            while (segment.indexEnd < end) {
+                if ((segment.indexOffset - segment.base) % INDEX_INTERVAL == 0) {
+                    if (segment.indexCount == segment.index.length) {
+                        segment.index = Arrays.copyOf(segment.index, segment.index.length * 2);
+                    }
+                    segment.index[segment.indexCount++] = segment.indexEnd;
+                }
+                segment.indexEnd += 4 + buffer.getInt(segment.indexEnd);
+                segment.indexOffset++;
+            }
+
+            int slot = (int) ((offset - segment.base) / INDEX_INTERVAL);
+            if (slot >= segment.indexCount) return end;
+            position = segment.index[slot];
+            skip = (offset - segment.base) % INDEX_INTERVAL;
+        }
+
+        for (; skip > 0 && position < segment.end; skip--) {
+            position += 4 + segment.buffer.getInt(position);
+        }
+        return position;
+    }
+
+
+    private Segment active() {
+        Segment[] all = segments;
+        return all[all.length - 1];
+    }
+
+
+    private static int length(ByteBuffer buffer, int position, Codec.Format format) {
+        int textLength = buffer.getInt(position + 16);
+        return format == Codec.Format.TEXT ? textLength : buffer.getInt(position) - (RECORD_HEADER - 4) - textLength;
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Checks that {@link Journal} gives back what was appended, across segments and restarts, and
+ * that recovery after a crash keeps the complete records and drops a torn or corrupt tail.
+ * <p>
+ * Works in a fresh temporary directory per check. Run with {@code java JournalTest}, exits with
+ * status 1 if any check fails.
+ */
+public class JournalTest {
+
+    //small segments so a few hundred frames roll over several of them
+    private static final int SEGMENT_BYTES = 8 * 1024;
+
+    //record layout, see Journal
+    private static final int SEGMENT_HEADER = 32;
+    private static final int CHECKPOINT_POSITION = 16;
+    private static final int CHECKPOINT_OFFSET = 24;
+
+    private static int failures;
+
+
+    public static void main(String[] args) {
+        run("append, close and read back", JournalTest::readBack);
+        run("read from an offset in both formats", JournalTest::readFromOffset);
+        run("segments roll and the oldest are deleted", JournalTest::rollAndTrim);
+        run("records behind the checkpoint are recovered", JournalTest::recoverBehindCheckpoint);
+        run("torn record at the tail is dropped", JournalTest::tornTail);
+        run("corrupt record stops recovery", JournalTest::corruptRecord);
+        run("a full queue drops frames", JournalTest::fullQueue);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+
+    private static void readBack() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            Journal journal = open(dir, 0);
+            check(journal.nextOffset() == 0, "empty journal starts at offset 0");
+            append(journal, 0, 50);
+            journal.close();
+
+            Journal reopened = open(dir, 0);
+            check(reopened.nextOffset() == 50, "reopened journal continues after the last frame");
+            check(readAll(reopened, 0, Codec.Format.BINARY).equals(messages(0, 50)), "frames read back in order");
+
+            //appending after the restart continues the offsets
+            append(reopened, 50, 10);
+            reopened.close();
+            check(readAll(open(dir, 0), 0, Codec.Format.TEXT).equals(messages(0, 60)), "frames of both runs read back");
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    private static void readFromOffset() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            Journal journal = open(dir, 0);
+            append(journal, 0, 300);
+            journal.close();
+
+            Journal reopened = open(dir, 0);
+            for (int offset : new int[]{0, 1, 63, 64, 65, 150, 299}) {
+                for (Codec.Format format : Codec.Format.values()) {
+                    check(readAll(reopened, offset, format).equals(messages(offset, 300)), format + " frames from offset " + offset);
+                }
+            }
+
+            Journal.Batch end = reopened.read(300, Codec.Format.BINARY);
+            check(end.frame == null && end.next == 300, "nothing to read at the end");
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    private static void rollAndTrim() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            Journal journal = open(dir, 3);
+            append(journal, 0, 500);
+            journal.close();
+            check(segmentFiles(dir).size() == 3, "only the newest segments are kept");
+
+            //reading from before the oldest kept segment starts at its first frame
+            Journal reopened = open(dir, 3);
+            List<Map<String, String>> kept = readAll(reopened, 0, Codec.Format.BINARY);
+            check(!kept.isEmpty() && kept.size() < 500, "older frames are gone");
+            check(kept.equals(messages(500 - kept.size(), 500)), "kept frames are the newest in order");
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    private static void recoverBehindCheckpoint() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            Journal journal = open(dir, 0);
+            append(journal, 0, 20);
+            journal.close();
+
+            //as if the server died after writing the records but before the checkpoint
+            Path last = lastSegment(dir);
+            writeCheckpoint(last, SEGMENT_HEADER, baseOf(last));
+
+            Journal reopened = open(dir, 0);
+            check(reopened.nextOffset() == 20, "records behind the checkpoint are scanned");
+            check(readAll(reopened, 0, Codec.Format.BINARY).equals(messages(0, 20)), "recovered frames read back");
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    private static void tornTail() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            Journal journal = open(dir, 0);
+            append(journal, 0, 20);
+            journal.close();
+
+            //cut the last record in half, as a crash in the middle of writing it would
+            Path last = lastSegment(dir);
+            List<Integer> records = recordPositions(last);
+            int torn = records.get(records.size() - 1);
+            try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                int length = readInt(channel, torn);
+                channel.write(ByteBuffer.allocate(length / 2), torn + 4 + length - length / 2);
+            }
+            writeCheckpoint(last, SEGMENT_HEADER, baseOf(last));
+
+            Journal reopened = open(dir, 0);
+            check(reopened.nextOffset() == 19, "torn record is not counted");
+            check(readAll(reopened, 0, Codec.Format.BINARY).equals(messages(0, 19)), "complete frames read back");
+
+            //the next frame takes the place of the torn one
+            append(reopened, 19, 1);
+            reopened.close();
+            check(readAll(open(dir, 0), 0, Codec.Format.BINARY).equals(messages(0, 20)), "frame written over the torn tail");
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    private static void corruptRecord() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            Journal journal = open(dir, 0);
+            append(journal, 0, 20);
+            journal.close();
+
+            //flip a byte inside the 11th record, everything from there on is dropped
+            Path last = lastSegment(dir);
+            int corrupt = recordPositions(last).get(10);
+            try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer one = ByteBuffer.allocate(1);
+                channel.read(one, corrupt + 24);
+                one.put(0, (byte) (one.get(0) ^ 0xff)).rewind();
+                channel.write(one, corrupt + 24);
+            }
+            writeCheckpoint(last, SEGMENT_HEADER, baseOf(last));
+
+            Journal reopened = open(dir, 0);
+            check(reopened.nextOffset() == 10, "recovery stops at the record failing its checksum");
+            check(readAll(reopened, 0, Codec.Format.TEXT).equals(messages(0, 10)), "frames before the corrupt one read back");
+            check(recordPositions(last).size() == 10, "the tail behind the corrupt record is cleared");
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    private static void fullQueue() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        try {
+            //no writer drains the queue, appends past its capacity return at once and are counted
+            Journal journal = Journal.open(dir, SEGMENT_BYTES, 10, 0);
+            append(journal, 0, 64 * 1024 + 5);
+            check(journal.dropped() == 5, "frames beyond the queue are dropped");
+            journal.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+
+    /**
+     * Method to open a journal in a directory and start its writer
+     */
+    private static Journal open(Path dir, int maxSegments) throws IOException {
+        Journal journal = Journal.open(dir, SEGMENT_BYTES, 10, maxSegments);
+        journal.start();
+        return journal;
+    }
+
+
+    private static void append(Journal journal, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            journal.append(Frame.of(message(i)));
+        }
+    }
+
+
+    /**
+     * Method to read every frame from an offset on, batch after batch
+     */
+    private static List<Map<String, String>> readAll(Journal journal, long offset, Codec.Format format) throws IOException {
+        List<Map<String, String>> messages = new ArrayList<>();
+        while (true) {
+            Journal.Batch batch = journal.read(offset, format);
+            if (batch.frame == null) return messages;
+
+            byte[] bytes = batch.frame.bytes(format);
+            for (int position = 0; position < bytes.length; ) {
+                int length = Codec.frameLength(bytes, position, bytes.length - position);
+                check(length > 0, "batch holds complete frames");
+                check(Codec.formatOf(bytes[position]) == format, "frames are read in the format asked for");
+                messages.add(Codec.decode(bytes, position, length));
+                position += length;
+            }
+            offset = batch.next;
+        }
+    }
+
+
+    private static List<Map<String, String>> messages(int from, int to) {
+        List<Map<String, String>> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+
+    private static Map<String, String> message(int i) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_USER_NAME, "user" + (i % 7));
+        map.put(Server.KEY_MESSAGE, "message number " + i);
+        return map;
+    }
+
+
+    private static List<Path> segmentFiles(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+
+    private static Path lastSegment(Path dir) throws IOException {
+        List<Path> files = segmentFiles(dir);
+        return files.get(files.size() - 1);
+    }
+
+
+    private static long baseOf(Path segment) {
+        return Long.parseLong(segment.getFileName().toString().replace(".log", ""));
+    }
+
+
+    /**
+     * Method to find where each record of a segment starts, up to the first empty length
+     */
+    private static List<Integer> recordPositions(Path segment) throws IOException {
+        List<Integer> positions = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            int position = SEGMENT_HEADER;
+            while (position + 4 <= channel.size()) {
+                int length = readInt(channel, position);
+                if (length <= 0) break;
+                positions.add(position);
+                position += 4 + length;
+            }
+        }
+        return positions;
+    }
+
+
+    private static void writeCheckpoint(Path segment, int position, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, position), CHECKPOINT_POSITION);
+            channel.write(ByteBuffer.allocate(8).putLong(0, offset), CHECKPOINT_OFFSET);
+        }
+    }
+
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        channel.read(buffer, position);
+        return buffer.getInt(0);
+    }
+
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+
+    // Body of one check
+    interface Check {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Method to run one check and report whether it passed
+     */
+    private static void run(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless client simulating many chat users, to put a {@link Server} under repeatable load.
+ * <p>
+ * The users are spread over a few selector loops. Each user goes through the same get id and
+ * new user steps as {@link Client}. Once all users are in, the loops send chat messages at a
+ * fixed total rate, taking turns among their users. Every message carries the time it was
+ * due, so the users receiving it record the delivery latency in a {@link Histogram}, and a
+ * server falling behind shows up as latency rather than as a lower send rate.
+ * <p>
+ * Run with {@code java LoadGenerator [users] [messages per second] [seconds] [binary]} against
+ * either {@link Server} or {@link NioServer}. The server limits every client to 20 messages a second by default, so either spread the rate
+ * over enough users or start the server with a higher {@code -Dchat.rate.messages}.
+ */
+public class LoadGenerator {
+    private static final String HOST = "localhost";
+    private static final int PORT = 8080;
+
+    //generated chat messages are this prefix followed by the time they were due
+    private static final String PREFIX = "load ";
+
+    // Steps a simulated user goes through
+    enum State {
+        CONNECTING, READY, CLOSED
+    }
+
+    // One simulated user, only touched by its loop
+    static final class User {
+        final String name;
+        SocketChannel channel;
+        SelectionKey key;
+        String clientId;
+        State state = State.CONNECTING;
+
+        //bytes of a frame that has not been completely received yet
+        byte[] partial;
+
+        //encoded frames the socket did not accept yet
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+        User(int index) {
+            this.name = "user" + index;
+        }
+    }
+
+    final int userCount;
+    final Codec.Format format;
+
+    // Users that finished the handshake, and those that either finished or failed it
+    final AtomicInteger readyUsers = new AtomicInteger();
+    final AtomicInteger settledUsers = new AtomicInteger();
+    final CountDownLatch allSettled = new CountDownLatch(1);
+
+    // Results of all the loops
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    final Histogram latencyNanos = new Histogram();
+
+    volatile boolean sending;
+    volatile boolean running = true;
+
+    LoadGenerator(int userCount, Codec.Format format) {
+        this.userCount = userCount;
+        this.format = format;
+    }
+
+
+    // Selector loop owning some of the users
+    final class Loop implements Runnable {
+        final Selector selector;
+        final List<User> users = new ArrayList<>();
+        final Thread thread;
+
+        //messages this loop sends per second
+        final double rate;
+
+        //receive buffer shared by the users of this loop
+        final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        final byte[] readArray = readBuffer.array();
+        final Message message = new Message();
+
+        Loop(int index, double rate) throws IOException {
+            this.selector = Selector.open();
+            this.rate = rate;
+            this.thread = new Thread(this, "load-" + index);
+        }
+
+
+        /**
+         * Method to connect a user, the server answers with its id
+         */
+        void connect(User user) throws IOException {
+            user.channel = SocketChannel.open(new InetSocketAddress(HOST, PORT));
+            user.channel.configureBlocking(false);
+            user.channel.socket().setTcpNoDelay(true);
+            user.key = user.channel.register(selector, SelectionKey.OP_READ, user);
+            users.add(user);
+        }
+
+
+        /**
+         * Loop, handles the handshakes and then sends at the loop's rate until stopped
+         */
+        @Override
+        public void run() {
+            boolean sends = rate > 0;
+            long interval = sends ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            long nextSend = 0;
+            int turn = 0;
+
+            while (running) {
+                try {
+                    //send every message that is due, stamped with the time it was due
+                    long now = System.nanoTime();
+                    if (sending && sends) {
+                        if (nextSend == 0) nextSend = now;
+                        while (nextSend - now <= 0) {
+                            User user = users.get(turn);
+                            turn = (turn + 1) % users.size();
+                            if (user.state == State.READY) sendChat(user, nextSend);
+                            nextSend += interval;
+                        }
+                    }
+
+                    //wait for the next message to be due or for replies
+                    long wait = sending && sends ? TimeUnit.NANOSECONDS.toMillis(nextSend - now) : 10;
+                    if (wait > 0) selector.select(wait);
+                    else selector.selectNow();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        User user = (User) key.attachment();
+
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) read(user);
+                        if (key.isValid() && key.isWritable()) flush(user);
+                    }
+                } catch (Exception e) {
+                    System.out.println("Error in load loop");
+                }
+            }
+
+            for (User user : users) {
+                close(user);
+            }
+        }
+
+
+        /**
+         * Method to read everything available for a user and handle complete frames
+         */
+        private void read(User user) {
+            try {
+                int count;
+                while ((count = user.channel.read(readBuffer)) > 0) {
+                    byte[] data = readArray;
+                    int available = count;
+                    if (user.partial != null) {
+                        data = Arrays.copyOf(user.partial, user.partial.length + count);
+                        System.arraycopy(readArray, 0, data, user.partial.length, count);
+                        available = data.length;
+                        user.partial = null;
+                    }
+
+                    int offset = 0;
+                    int length;
+                    while ((length = Codec.frameLength(data, offset, available - offset)) > 0) {
+                        message.parse(data, offset, length);
+                        onMessage(user, message);
+                        offset += length;
+                    }
+                    if (offset < available) {
+                        user.partial = Arrays.copyOfRange(data, offset, available);
+                    }
+                    readBuffer.clear();
+                }
+                if (count < 0) {
+                    System.out.println("Server closed the connection of " + user.name);
+                    close(user);
+                }
+            } catch (Exception e) {
+                readBuffer.clear();
+                close(user);
+            }
+        }
+
+
+        /**
+         * Method to handle a message from the server
+         */
+        private void onMessage(User user, Message message) throws IOException {
+            //if method send message, only the generated messages are timed
+            if (message.is(Server.METHOD_SEND_MSG)) {
+                String text = message.get(Server.KEY_MESSAGE);
+                if (text != null && text.startsWith(PREFIX)) {
+                    long due = Long.parseLong(text.substring(PREFIX.length()));
+                    latencyNanos.record(System.nanoTime() - due);
+                    received.increment();
+                }
+            }
+            //if method get id
+            else if (message.is(Server.METHOD_GET_ID)) {
+                user.clientId = message.get(Server.KEY_USER_ID);
+                newUser(user);
+            }
+            //if method ping
+            else if (message.is(Server.METHOD_PING)) {
+                Map<String, String> payload = new HashMap<>();
+                payload.put(Server.KEY_TYPE, Server.METHOD_PONG);
+                send(user, payload);
+            }
+            //if method rate limited
+            else if (message.is(Server.METHOD_RATE_LIMITED)) {
+                rateLimited.increment();
+            }
+        }
+
+
+        private void newUser(User user) throws IOException {
+            Map<String, String> payload = new HashMap<>();
+            payload.put(Server.KEY_USER_ID, user.clientId);
+            payload.put(Server.KEY_USER_NAME, user.name);
+            payload.put(Server.KEY_TYPE, Server.METHOD_NEW_USER);
+            user.state = State.READY;
+            send(user, payload);
+
+            readyUsers.incrementAndGet();
+            settle();
+        }
+
+
+        /**
+         * Method to count a user that is done with the handshake, the messages start with the last one
+         */
+        private void settle() {
+            if (settledUsers.incrementAndGet() == userCount) allSettled.countDown();
+        }
+
+
+        private void sendChat(User user, long due) throws IOException {
+            Map<String, String> payload = new HashMap<>();
+            payload.put(Server.KEY_MESSAGE, PREFIX + due);
+            payload.put(Server.KEY_USER_ID, user.clientId);
+            payload.put(Server.KEY_USER_NAME, user.name);
+            payload.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+            send(user, payload);
+            sent.increment();
+        }
+
+
+        /**
+         * Method to write a frame, keeping what the socket does not take until it is writable
+         */
+        private void send(User user, Map<String, String> payload) throws IOException {
+            user.pending.add(ByteBuffer.wrap(Codec.encode(payload, format)));
+            if (user.pending.size() == 1) flush(user);
+        }
+
+
+        private void flush(User user) {
+            try {
+                ByteBuffer head;
+                while ((head = user.pending.peek()) != null) {
+                    user.channel.write(head);
+                    if (head.hasRemaining()) break;
+                    user.pending.poll();
+                }
+                user.key.interestOps(user.pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (Exception e) {
+                close(user);
+            }
+        }
+
+
+        private void close(User user) {
+            if (user.state == State.CLOSED) return;
+            if (user.state != State.READY) settle();
+            user.state = State.CLOSED;
+            user.pending.clear();
+            try {
+                user.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    /**
+     * Main method, connects the users, sends for the given time and prints the results
+     */
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Codec.Format format = args.length > 3 && args[3].equals("binary") ? Codec.Format.BINARY : Codec.Format.TEXT;
+
+        LoadGenerator generator = new LoadGenerator(users, format);
+        int loopCount = Math.min(users, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        Loop[] loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = generator.new Loop(i, rate / loopCount);
+        }
+
+        //connect all users before the loops run, so registering needs no wakeups
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            loops[i % loopCount].connect(new User(i));
+        }
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+
+        //users the server dropped or left hanging during the handshake are left out
+        generator.allSettled.await(10, TimeUnit.SECONDS);
+        if (generator.readyUsers.get() == 0) {
+            System.out.println("No user got in");
+            generator.running = false;
+            return;
+        }
+        System.out.printf("%d of %d users ready after %d ms%n", generator.readyUsers.get(),
+                users, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        //send for the given time, then give the last messages a second to arrive
+        generator.sending = true;
+        long sendStart = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        generator.sending = false;
+        double elapsed = (System.nanoTime() - sendStart) / 1e9;
+        TimeUnit.SECONDS.sleep(1);
+        generator.running = false;
+        for (Loop loop : loops) {
+            loop.thread.join();
+        }
+
+        generator.report(elapsed);
+    }
+
+
+    /**
+     * Method to print throughput and delivery latency percentiles
+     */
+    private void report(double seconds) {
+        Histogram.Snapshot latency = latencyNanos.snapshot();
+        System.out.printf("sent         %10d  %10.0f msg/s%n", sent.sum(), sent.sum() / seconds);
+        System.out.printf("delivered    %10d  %10.0f msg/s%n", received.sum(), received.sum() / seconds);
+        System.out.printf("rate limited %10d%n", rateLimited.sum());
+        double[] percentiles = {50, 90, 99, 99.9, 100};
+        String[] names = {"p50", "p90", "p99", "p99.9", "max"};
+        for (int i = 0; i < percentiles.length; i++) {
+            System.out.printf("latency %-5s %10.3f ms%n", names[i], latency.percentile(percentiles[i]) / 1e6);
+        }
+    }
+}
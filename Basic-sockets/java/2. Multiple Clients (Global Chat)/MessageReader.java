@@ -0,0 +1,82 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames of either wire format from one connection into a single reusable {@link Message}.
+ * <p>
+ * Bytes are read straight into a buffer owned by the reader and parsed in place, so once the
+ * buffer has grown to the largest frame of the connection, reading a message allocates nothing.
+ * Compressed frames are the exception, they are inflated into a fresh array. A buffer grown
+ * beyond 64 KB for a rare large frame shrinks back once that frame was read, so an idle
+ * connection does not keep up to 16 MB alive.
+ */
+public class MessageReader {
+    private final InputStream in;
+    private final Message message = new Message();
+
+    private static final int INITIAL_BYTES = 1024;
+    private static final int KEEP_BYTES = 64 * 1024;
+
+    //a frame of the largest length with its length prefix
+    private static final int MAX_BUFFER_BYTES = Codec.MAX_FRAME_LENGTH + 4;
+
+    //received bytes not consumed yet are in [start, end)
+    private byte[] buffer = new byte[INITIAL_BYTES];
+    private int start;
+    private int end;
+
+    //created with the first compressed frame
+    private Inflater inflater;
+
+    public MessageReader(InputStream in) {
+        this.in = in;
+    }
+
+
+    /**
+     * Method to read the next frame, blocking until it is completely received
+     *
+     * @return the reusable message, valid until the next call
+     * @throws EOFException if the connection was closed
+     */
+    public Message next() throws IOException {
+        //the message of the previous call is done with, so a buffer grown for a large frame can go
+        if (buffer.length > KEEP_BYTES && end - start <= INITIAL_BYTES) {
+            buffer = Arrays.copyOfRange(buffer, start, start + INITIAL_BYTES);
+            end -= start;
+            start = 0;
+        }
+
+        while (true) {
+            int length = Codec.frameLength(buffer, start, end - start);
+            if (length > 0) {
+                if (buffer[start] == Codec.COMPRESSED) {
+                    if (inflater == null) inflater = new Inflater();
+                    byte[] frame = Codec.inflate(buffer, start, length, inflater);
+                    message.parse(frame, 0, frame.length);
+                } else {
+                    message.parse(buffer, start, length);
+                }
+                start += length;
+                return message;
+            }
+
+            //move the unfinished frame to the front, or grow the buffer if it fills it already
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            } else if (end == buffer.length) {
+                if (buffer.length >= MAX_BUFFER_BYTES) throw new IOException("Frame too long");
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_BUFFER_BYTES));
+            }
+
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0) throw new EOFException();
+            end += count;
+        }
+    }
+}
@@ -0,0 +1,857 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Global chat server built on non-blocking channels instead of one thread per client.
+ * <p>
+ * Accepted connections are spread over one selector loop per core. Each loop owns the
+ * reads and writes of its connections, so an idle client costs a channel and a small
+ * {@link Connection} object instead of a whole thread stack. A broadcast is handed to every loop
+ * once and each loop queues it for its own connections, so the fan-out is spread over the cores too.
+ * The messages and wire formats are the same as {@link Server}, so {@link Client} works against either.
+ */
+public class NioServer {
+    // Connection class for storing client information
+    static class Connection {
+        String clientId;
+        volatile String clientName;
+        SocketChannel channel;
+        SelectionKey key;
+        EventLoop loop;
+
+        //bytes of a frame that has not been completely received yet, the first partialLength of partial
+        byte[] partial;
+        int partialLength;
+
+        //format the client last spoke, replies are sent in the same format
+        volatile Codec.Format format = Codec.Format.TEXT;
+
+        //frames waiting to be written to the channel, bounded like the queues of the blocking server
+        ArrayBlockingQueue<Frame> outbound;
+
+        //set once the connection overflowed its queue, so it is reported only once
+        final AtomicBoolean tooSlow = new AtomicBoolean();
+
+        //bytes of the head frame already written and the format it is written in, only touched by the owning loop
+        int headOffset;
+        Codec.Format headFormat;
+
+        //true while the connection is waiting for its loop to flush it
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        //pings the client when it goes quiet, null when heartbeats are off
+        Heartbeat heartbeat;
+
+        //limits the chat messages of the client, null when limiting is off
+        TokenBucket limiter;
+
+        //journal frames last sent to the client, another fetch waits until they left the queue
+        Frame fetched;
+    }
+
+    //upper bound for a single frame including its length prefix, the same as for Server, a client sending a larger one is disconnected
+    static final int MAX_FRAME_LENGTH = Codec.MAX_FRAME_LENGTH + 4;
+
+    //a partial buffer grown beyond this for a large frame is let go once the frame is complete
+    private static final int PARTIAL_KEEP_BYTES = 64 * 1024;
+
+    ServerSocketChannel serverChannel;
+
+    // Selector loops, one per core
+    EventLoop[] loops;
+
+    // Connected clients by id
+    Map<String, Connection> clients;
+
+    // Named clients by name for direct messages, a name belongs to the first client that took it
+    Map<String, Connection> names;
+
+    // Size of each client's outbound queue and what to do when it is full
+    int queueCapacity;
+    OutboundQueue.OverflowPolicy overflowPolicy;
+
+    // Keeps the order of the broadcasts the same in every loop
+    final ReentrantLock broadcastLock = new ReentrantLock();
+
+    // Recent broadcast frames replayed to joining clients, null when turned off
+    HistoryRing history;
+
+    // Journal of every broadcast frame on disk, null when no directory is set
+    Journal journal;
+
+    // Other servers sharing this chat, null when the server runs on its own
+    Cluster cluster;
+
+    // Timers of the heartbeats and how long a client may stay silent, null when heartbeats are off
+    TimingWheel timers;
+    long heartbeatIdleMillis;
+    long heartbeatTimeoutMillis;
+
+    // Messages per second and burst allowed to each client, a rate of 0 turns limiting off
+    double messageRate;
+    int messageBurst;
+
+    // Number of chat messages refused for going over the rate
+    LongAdder rejectedMessages = new LongAdder();
+
+    // Counters and latency histograms, always on
+    Stats stats = new Stats();
+
+    NioServer(ServerSocketChannel serverChannel, int loopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.clients = new ConcurrentHashMap<>();
+        this.names = new ConcurrentHashMap<>();
+        this.queueCapacity = Integer.getInteger(OutboundQueue.PROPERTY_CAPACITY, OutboundQueue.DEFAULT_CAPACITY);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.parse(
+                System.getProperty(OutboundQueue.PROPERTY_POLICY, OutboundQueue.DEFAULT_POLICY.name()));
+        this.history = HistoryRing.fromProperties();
+        this.journal = Journal.fromProperties();
+        this.messageRate = Double.parseDouble(System.getProperty(TokenBucket.PROPERTY_RATE, String.valueOf(TokenBucket.DEFAULT_RATE)));
+        this.messageBurst = Integer.getInteger(TokenBucket.PROPERTY_BURST, TokenBucket.DEFAULT_BURST);
+        this.heartbeatIdleMillis = Long.getLong(Heartbeat.PROPERTY_IDLE_MILLIS, Heartbeat.DEFAULT_IDLE_MILLIS);
+        this.heartbeatTimeoutMillis = Long.getLong(Heartbeat.PROPERTY_TIMEOUT_MILLIS, Heartbeat.DEFAULT_TIMEOUT_MILLIS);
+        if (heartbeatIdleMillis > 0) {
+            //100 ms ticks, one revolution of the wheel is about 51 seconds
+            this.timers = new TimingWheel(100, 512);
+            timers.start();
+        }
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        this.cluster = Cluster.fromProperties(this::deliver);
+    }
+
+
+    /**
+     * Method to start the server
+     */
+    public void startServer() {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                //wait for client to connect
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                //create a new client and hand it over to the next loop
+                Connection connection = new Connection();
+                connection.channel = channel;
+                connection.clientId = Utils.generateId();
+                connection.outbound = new ArrayBlockingQueue<>(queueCapacity);
+                if (messageRate > 0) connection.limiter = new TokenBucket(messageRate, messageBurst);
+                connection.loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                clients.put(connection.clientId, connection);
+                startHeartbeat(connection);
+                connection.loop.register(connection);
+
+                //send the generated id to the client
+                sendIDToClient(connection);
+            } catch (Exception e) {
+                System.out.println("Server Disconnected");
+            }
+        }
+    }
+
+
+    /**
+     * Method to watch a client for silence, see {@link Server#startHeartbeat}
+     *
+     * @param connection client to watch
+     */
+    private void startHeartbeat(Connection connection) {
+        if (timers == null) return;
+
+        connection.heartbeat = new Heartbeat(timers, heartbeatIdleMillis, heartbeatTimeoutMillis,
+                //the wheel thread never waits, skips the ping of a full queue and leaves the eviction to the loop
+                () -> trySend(connection, Heartbeat.PING),
+                () -> {
+                    System.out.println("Client timed out: " + (connection.clientName == null ? connection.clientId : connection.clientName));
+                    connection.loop.scheduleEviction(connection);
+                });
+        connection.heartbeat.start();
+    }
+
+
+    /**
+     * Method for sending id to the client
+     *
+     * @param connection client to send the id to
+     */
+    public void sendIDToClient(Connection connection) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_USER_ID, connection.clientId);
+        map.put(Server.KEY_TYPE, Server.METHOD_GET_ID);
+        send(connection, Frame.of(map));
+    }
+
+
+    /**
+     * Method to handle one complete message received from a client
+     *
+     * @param connection client the message came from
+     * @param message    decoded message, reused for the next frame
+     */
+    private void onMessage(Connection connection, Message message) {
+        connection.format = message.format;
+
+        //any message, a pong included, shows the client is alive
+        if (connection.heartbeat != null) connection.heartbeat.seen();
+        stats.received(message.length);
+
+        //if method new user
+        if (message.is(Server.METHOD_NEW_USER)) {
+            newClient(message);
+        }
+        //if method send message
+        else if (message.is(Server.METHOD_SEND_MSG)) {
+            sendChat(message, connection);
+        }
+        //if method direct message
+        else if (message.is(Server.METHOD_DIRECT_MSG)) {
+            sendDirect(message, connection);
+        }
+        //if method fetch history
+        else if (message.is(Server.METHOD_FETCH_HISTORY)) {
+            fetchHistory(message, connection);
+        }
+        //if method stats
+        else if (message.is(Server.METHOD_STATS)) {
+            sendStats(message, connection);
+        }
+    }
+
+
+    /**
+     * Method to register the name of a new client
+     *
+     * @param message message containing the client information
+     */
+    private void newClient(Message message) {
+        String senderId = message.get(Server.KEY_USER_ID);
+        String senderName = message.get(Server.KEY_USER_NAME);
+
+        Connection connection = clients.get(senderId);
+        if (connection != null) {
+            //a client entering another name is no longer found under the old one, see ClientRegistry#rename
+            String previous = connection.clientName;
+            if (previous != null) names.remove(previous, connection);
+
+            connection.clientName = senderName;
+            if (senderName != null) names.putIfAbsent(senderName, connection);
+            replayHistory(connection);
+        }
+        System.out.println("Client Connected: " + senderName);
+
+        //broadcast the new client to all the clients
+        broadcastMessage("joined the chat", senderId, senderName);
+    }
+
+
+    /**
+     * Method to send a client what was said before it joined, see {@link Server#replayHistory}
+     *
+     * @param connection client that just entered its name
+     */
+    private void replayHistory(Connection connection) {
+        if (history == null) return;
+
+        //the replayed frames are copied from the ring once and from there into the loop's write buffer
+        Frame frame = history.replay(history.position(), connection.format);
+        if (frame != null) {
+            send(connection, frame);
+        }
+    }
+
+
+    /**
+     * Method to send a message to all the clients
+     *
+     * @param message    message containing the message information
+     * @param connection client that sent the message
+     */
+    private void sendChat(Message message, Connection connection) {
+        //refuse messages over the client's rate before they cost a fan-out
+        if (connection.limiter != null && !connection.limiter.tryAcquire()) {
+            rejectedMessages.increment();
+            send(connection, TokenBucket.REJECTED);
+            return;
+        }
+
+        String senderId = message.get(Server.KEY_USER_ID);
+        String senderName = message.get(Server.KEY_USER_NAME);
+        String msg = message.get(Server.KEY_MESSAGE);
+
+        //broadcast the message to all the clients, a cluster that cannot take more refuses it like the rate does
+        if (!broadcastMessage(msg, senderId, senderName)) {
+            rejectedMessages.increment();
+            send(connection, TokenBucket.REJECTED);
+        }
+    }
+
+
+    /**
+     * Method to send a message to a single client found by id or by name, see {@link Server#sendDirect}
+     *
+     * @param message    message containing the recipient and the text
+     * @param connection client that sent the message
+     */
+    private void sendDirect(Message message, Connection connection) {
+        //only clients that entered a name send messages
+        if (connection.clientName == null) return;
+
+        //direct messages count against the same rate as chat messages
+        if (connection.limiter != null && !connection.limiter.tryAcquire()) {
+            rejectedMessages.increment();
+            send(connection, TokenBucket.REJECTED);
+            return;
+        }
+
+        String to = message.get(Server.KEY_TO);
+        Connection recipient = to == null ? null : clients.get(to);
+        if (recipient == null && to != null) recipient = names.get(to);
+
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_DIRECT_MSG);
+        map.put(Server.KEY_TO, to);
+
+        //nobody to deliver to, the reply without a sender tells the client so
+        if (recipient == null || recipient.clientName == null) {
+            send(connection, Frame.of(map));
+            return;
+        }
+
+        map.put(Server.KEY_USER_ID, connection.clientId);
+        map.put(Server.KEY_USER_NAME, connection.clientName);
+        map.put(Server.KEY_MESSAGE, message.get(Server.KEY_MESSAGE));
+        send(recipient, Frame.of(map));
+    }
+
+
+    /**
+     * Method to send a client the journal frames from the offset it asks for, see {@link Server#fetchHistory}
+     *
+     * @param message    message containing the offset
+     * @param connection client asking
+     */
+    private void fetchHistory(Message message, Connection connection) {
+        if (journal == null) return;
+
+        //fetches count against the chat rate, and a client has at most one read in its queue
+        boolean queued = connection.fetched != null && connection.outbound.contains(connection.fetched);
+        if (queued || (connection.limiter != null && !connection.limiter.tryAcquire())) {
+            rejectedMessages.increment();
+            send(connection, TokenBucket.REJECTED);
+            return;
+        }
+
+        Journal.Batch batch = journal.read(Server.parseOffset(message.get(Server.KEY_OFFSET)), connection.format);
+        if (batch.frame != null) {
+            connection.fetched = batch.frame;
+            send(connection, batch.frame);
+        }
+
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_FETCH_HISTORY);
+        map.put(Server.KEY_OFFSET, Long.toString(batch.next));
+        send(connection, Frame.of(map));
+    }
+
+
+    /**
+     * Method to send an admin a snapshot of the counters and latency percentiles
+     *
+     * @param message message containing the admin token
+     * @param connection client asking
+     */
+    private void sendStats(Message message, Connection connection) {
+        //requests from anybody but an admin are ignored
+        if (!stats.allowed(connection.channel.socket().getInetAddress(), message.get(Server.KEY_MESSAGE))) return;
+
+        Map<String, String> map = stats.snapshot();
+        map.put("rateLimited", Long.toString(rejectedMessages.sum()));
+        if (journal != null) map.put("journalDropped", Long.toString(journal.dropped()));
+        send(connection, Frame.of(map));
+    }
+
+
+    /**
+     * Method to disconnect a client
+     *
+     * @param connection client to disconnect
+     */
+    public void disconnectClient(Connection connection) {
+        //already disconnected
+        if (clients.remove(connection.clientId) == null) {
+            return;
+        }
+        if (connection.heartbeat != null) connection.heartbeat.stop();
+
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            System.out.println("Error in disconnecting client");
+        }
+
+        //client disconnected before without entering a name
+        if (connection.clientName == null) {
+            return;
+        }
+        names.remove(connection.clientName, connection);
+
+        System.out.println("Client Disconnected: " + connection.clientName);
+
+        //broadcast the client disconnection to all the clients
+        broadcastMessage("left the chat", connection.clientId, connection.clientName);
+    }
+
+
+    /**
+     * Method to broadcast a message to all the clients
+     * <p>
+     * In a cluster the message is only delivered once the sequencer has given it its place, on
+     * every node alike.
+     *
+     * @param message    message to broadcast
+     * @param senderId   id of the sender
+     * @param senderName name of the sender
+     * @return false if the cluster refused the message as its sequencer is too far behind
+     */
+    public boolean broadcastMessage(String message, String senderId, String senderName) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_MESSAGE, message);
+        map.put(Server.KEY_USER_NAME, senderName);
+
+        if (cluster != null) {
+            return cluster.publish(map, senderId);
+        }
+        deliver(map, senderId);
+        return true;
+    }
+
+
+    /**
+     * Method to send a message to all the local clients
+     *
+     * @param map      message to send
+     * @param senderId id of the sender, null for messages from other nodes
+     */
+    void deliver(Map<String, String> map, String senderId) {
+        //encode the message once, every client is sent the same frame
+        Frame frame = Frame.of(map);
+
+        //every loop sends the frame to its own connections, one hand over per loop
+        FanOut.Broadcast broadcast = new FanOut.Broadcast(frame, senderId, loops.length);
+        broadcastLock.lock();
+        try {
+            //recorded under the same lock, so the history and the journal keep the order every connection gets
+            if (history != null) history.append(frame);
+            if (journal != null) journal.append(frame);
+            for (EventLoop loop : loops) {
+                loop.scheduleBroadcast(broadcast);
+            }
+        } finally {
+            broadcastLock.unlock();
+        }
+    }
+
+
+    /**
+     * Method to queue a frame for a client, the write itself happens on the client's loop
+     *
+     * @param connection client to send to
+     * @param frame      frame to send
+     */
+    private void send(Connection connection, Frame frame) {
+        if (!connection.outbound.offer(frame) && !overflow(connection, frame)) return;
+        if (connection.flushScheduled.compareAndSet(false, true)) {
+            connection.loop.scheduleFlush(connection);
+        }
+    }
+
+
+    /**
+     * Method to queue a frame only if there is room right now, whatever the overflow policy
+     *
+     * @param connection client to send to
+     * @param frame      frame the client may miss
+     */
+    private void trySend(Connection connection, Frame frame) {
+        if (!connection.outbound.offer(frame)) return;
+        if (connection.flushScheduled.compareAndSet(false, true)) {
+            connection.loop.scheduleFlush(connection);
+        }
+    }
+
+
+    /**
+     * Method to apply the overflow policy to a frame for a client whose queue is full
+     * <p>
+     * Most frames are queued by the loop of the client, which never waits for one of its own
+     * connections, so the block policy disconnects the slow client just like disconnect does.
+     * Dropping the oldest frame keeps a frame that is half written, and only the loop of the
+     * client knows which one that is, so other threads drop the new frame instead.
+     *
+     * @param connection client whose queue is full
+     * @param frame      frame to send
+     * @return true if the frame was queued after all
+     */
+    private boolean overflow(Connection connection, Frame frame) {
+        if (overflowPolicy == OutboundQueue.OverflowPolicy.DROP_OLDEST) {
+            if (Thread.currentThread() != connection.loop.thread) return false;
+
+            Iterator<Frame> queued = connection.outbound.iterator();
+            if (connection.headOffset > 0 && queued.hasNext()) queued.next();
+            if (queued.hasNext()) {
+                queued.next();
+                queued.remove();
+            }
+            return connection.outbound.offer(frame);
+        }
+
+        if (connection.tooSlow.compareAndSet(false, true)) {
+            System.out.println("Client too slow, disconnecting");
+            disconnectClient(connection);
+        }
+        return false;
+    }
+
+
+    // Selector loop owning the reads and writes of a subset of the connections
+    class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+
+        //connections accepted but not registered with the selector yet
+        final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+        //connections with frames waiting to be written
+        final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+        //broadcasts not yet queued for the connections of this loop
+        final Queue<FanOut.Broadcast> pendingBroadcasts = new ConcurrentLinkedQueue<>();
+
+        //connections to disconnect, handed over by threads that must not broadcast their leave
+        final Queue<Connection> pendingEvictions = new ConcurrentLinkedQueue<>();
+
+        //shared by all connections of this loop as reads never overlap
+        final byte[] readArray = new byte[16 * 1024];
+        final Message message = new Message();
+        final ByteBuffer readBuffer = ByteBuffer.wrap(readArray);
+
+        //queued frames are packed here, so several go out in one write and no buffer is created per recipient
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+
+        /**
+         * Method to hand a new connection over to this loop
+         *
+         * @param connection connection to register
+         */
+        void register(Connection connection) {
+            pendingRegistrations.add(connection);
+            selector.wakeup();
+        }
+
+
+        /**
+         * Method to ask this loop to write the queued frames of a connection
+         *
+         * @param connection connection to flush
+         */
+        void scheduleFlush(Connection connection) {
+            pendingFlushes.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+
+        /**
+         * Method to ask this loop to queue a broadcast for its connections
+         *
+         * @param broadcast broadcast to queue
+         */
+        void scheduleBroadcast(FanOut.Broadcast broadcast) {
+            pendingBroadcasts.add(broadcast);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+
+        /**
+         * Method to ask this loop to disconnect a connection
+         *
+         * @param connection connection to disconnect
+         */
+        void scheduleEviction(Connection connection) {
+            pendingEvictions.add(connection);
+            selector.wakeup();
+        }
+
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    //register newly accepted connections
+                    Connection connection;
+                    while ((connection = pendingRegistrations.poll()) != null) {
+                        try {
+                            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+
+                            //frames queued before the registration
+                            if (!connection.outbound.isEmpty()) flush(connection);
+                        } catch (ClosedChannelException e) {
+                            disconnectClient(connection);
+                        }
+                    }
+
+                    //queue the broadcasts for the connections of this loop, then write them out below
+                    FanOut.Broadcast broadcast;
+                    while ((broadcast = pendingBroadcasts.poll()) != null) {
+                        queueBroadcast(broadcast);
+                    }
+
+                    //disconnect the connections evicted by other threads
+                    while ((connection = pendingEvictions.poll()) != null) {
+                        disconnectClient(connection);
+                    }
+
+                    //write out whatever was queued from other threads
+                    while ((connection = pendingFlushes.poll()) != null) {
+                        flush(connection);
+                    }
+
+                    //wait for io or for a wakeup from another thread
+                    selector.select();
+
+                    //handle ready channels
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection ready = (Connection) key.attachment();
+
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) read(ready);
+                        if (key.isValid() && key.isWritable()) flush(ready);
+                    }
+                } catch (Exception e) {
+                    System.out.println("Error in event loop");
+                }
+            }
+        }
+
+
+        /**
+         * Method to queue a broadcast for every connection registered with this loop
+         *
+         * @param broadcast broadcast to queue
+         */
+        private void queueBroadcast(FanOut.Broadcast broadcast) {
+            int recipients = 0;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+
+                //send the message to all the clients except the sender and those still entering a name
+                if (!key.isValid()) continue;
+                if (connection.clientId.equals(broadcast.senderId)) continue;
+                if (connection.clientName == null) continue;
+                send(connection, broadcast.frame);
+                recipients++;
+            }
+            broadcast.done(recipients, stats);
+        }
+
+
+        /**
+         * Method to read everything available on a connection and handle complete frames
+         *
+         * @param connection connection to read from
+         */
+        private void read(Connection connection) {
+            try {
+                int count;
+                while ((count = connection.channel.read(readBuffer)) > 0) {
+                    splitFrames(connection, count);
+                    readBuffer.clear();
+                }
+                if (count < 0) {
+                    disconnectClient(connection);
+                }
+            } catch (Exception e) {
+                readBuffer.clear();
+                disconnectClient(connection);
+            }
+        }
+
+
+        /**
+         * Method to split the read bytes into frames, keeping an unfinished frame for later
+         *
+         * @param connection connection the bytes belong to
+         * @param count      number of bytes read into the read array
+         */
+        private void splitFrames(Connection connection, int count) throws IOException {
+            byte[] data = readArray;
+            int available = count;
+            if (connection.partialLength > 0) {
+                append(connection, readArray, 0, count);
+                data = connection.partial;
+                available = connection.partialLength;
+            }
+
+            int offset = 0;
+            int length;
+            while ((length = Codec.frameLength(data, offset, available - offset)) > 0) {
+                message.parse(data, offset, length);
+                onMessage(connection, message);
+                offset += length;
+            }
+
+            //no complete frame left, keep the rest until more bytes arrive
+            int rest = available - offset;
+            if (rest > MAX_FRAME_LENGTH) {
+                throw new IOException("Frame too long");
+            }
+            if (data == connection.partial) {
+                connection.partialLength = 0;
+
+                //let go of a buffer grown for a large frame, the rest is moved to the front otherwise
+                if (data.length > PARTIAL_KEEP_BYTES && rest <= PARTIAL_KEEP_BYTES) connection.partial = null;
+            }
+            if (rest > 0) append(connection, data, offset, rest);
+        }
+
+
+        /**
+         * Method to add received bytes to the partial frame of a connection
+         * <p>
+         * The buffer doubles as it fills, so a large frame arriving in many reads is copied a
+         * few times in all instead of once per read.
+         */
+        private void append(Connection connection, byte[] bytes, int offset, int length) {
+            int needed = connection.partialLength + length;
+            byte[] partial = connection.partial;
+            if (partial == null || partial.length < needed) {
+                int capacity = partial == null ? readArray.length : partial.length;
+                while (capacity < needed) capacity *= 2;
+                connection.partial = partial = Arrays.copyOf(partial == null ? new byte[0] : partial, capacity);
+            }
+            System.arraycopy(bytes, offset, partial, connection.partialLength, length);
+            connection.partialLength = needed;
+        }
+
+
+        /**
+         * Method to write as many queued frames as the socket accepts
+         *
+         * @param connection connection to write to
+         */
+        private void flush(Connection connection) {
+            SelectionKey key = connection.key;
+
+            //not registered yet, the flush happens right after the registration
+            if (key == null) return;
+            if (!key.isValid()) return;
+
+            try {
+                while (!connection.outbound.isEmpty()) {
+                    //a frame is finished in the format it was started in
+                    Codec.Format format = connection.headOffset > 0 ? connection.headFormat : connection.format;
+                    connection.headFormat = format;
+
+                    //pack as many queued frames as fit into a single write
+                    writeBuffer.clear();
+                    int offset = connection.headOffset;
+                    for (Frame frame : connection.outbound) {
+                        frame.copyTo(writeBuffer, offset, format);
+                        offset = 0;
+                        if (!writeBuffer.hasRemaining()) break;
+                    }
+                    writeBuffer.flip();
+                    int copied = writeBuffer.remaining();
+                    int written = connection.channel.write(writeBuffer);
+                    long now = System.nanoTime();
+
+                    //drop the frames that went out completely
+                    int done = written;
+                    while (done > 0) {
+                        int rest = connection.outbound.peek().length(format) - connection.headOffset;
+                        if (done < rest) {
+                            connection.headOffset += done;
+                            break;
+                        }
+                        Frame sent = connection.outbound.poll();
+                        stats.sent(sent, sent.length(format), now);
+                        connection.headOffset = 0;
+                        done -= rest;
+                    }
+
+                    //socket buffer full, wait until it becomes writable again
+                    if (written < copied) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+                connection.flushScheduled.set(false);
+
+                //a frame may have been queued after the last peek
+                if (!connection.outbound.isEmpty() && connection.flushScheduled.compareAndSet(false, true)) {
+                    pendingFlushes.add(connection);
+                }
+            } catch (Exception e) {
+                disconnectClient(connection);
+            }
+        }
+    }
+
+
+    /**
+     * Main method to start the server
+     */
+    public static void main(String[] args) {
+        int port = Integer.getInteger(Server.PROPERTY_PORT, 8080);
+        try {
+            //create a non blocking server with one loop per core
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Server running on port " + port);
+
+            NioServer server = new NioServer(serverChannel, Runtime.getRuntime().availableProcessors());
+            server.startServer();
+        } catch (Exception e) {
+            System.out.println("Error starting server on port " + port);
+        }
+    }
+}
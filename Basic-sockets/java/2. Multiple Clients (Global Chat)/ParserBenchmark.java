@@ -0,0 +1,75 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures heap bytes allocated per parsed message, before and after {@link Message}.
+ * <p>
+ * Run with {@code java ParserBenchmark}. Needs a JVM exposing per thread allocation
+ * counters, which HotSpot does.
+ */
+public class ParserBenchmark {
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+
+    //keeps results alive so the JIT cannot drop the parsing
+    static int sink;
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_USER_ID, Utils.generateId());
+        map.put(Server.KEY_USER_NAME, "alice");
+        map.put(Server.KEY_MESSAGE, "hello everyone in the global chat");
+
+        String line = map.toString();
+        byte[] text = Codec.encode(map, Codec.Format.TEXT);
+        byte[] binary = Codec.encode(map, Codec.Format.BINARY);
+        Message message = new Message();
+
+        report("Utils.messageToMap", () -> sink += Utils.messageToMap(line).size());
+        report("Codec.decode text", () -> sink += Codec.decode(text, 0, text.length).size());
+        report("Message.parse text", () -> {
+            message.parse(text, 0, text.length);
+            sink += message.is(Server.METHOD_SEND_MSG) ? 1 : 0;
+        });
+        report("Message.parse binary", () -> {
+            message.parse(binary, 0, binary.length);
+            sink += message.is(Server.METHOD_SEND_MSG) ? 1 : 0;
+        });
+        report("Message.parse + get x3", () -> {
+            message.parse(text, 0, text.length);
+            sink += message.get(Server.KEY_USER_ID).length()
+                    + message.get(Server.KEY_USER_NAME).length()
+                    + message.get(Server.KEY_MESSAGE).length();
+        });
+
+        System.out.println("line: " + new String(text, StandardCharsets.UTF_8).trim());
+    }
+
+
+    // Body of a measured loop
+    interface Task {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Method to print allocated bytes and time per call of a task
+     */
+    private static void report(String name, Task task) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int i = 0; i < WARMUP; i++) task.run();
+
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) task.run();
+        long time = System.nanoTime() - timeBefore;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+
+        System.out.printf("%-24s %8.1f bytes/msg %8.1f ns/msg%n", name, (double) bytes / ITERATIONS, (double) time / ITERATIONS);
+    }
+}
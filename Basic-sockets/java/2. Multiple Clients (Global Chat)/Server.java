@@ -1,39 +1,144 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
     // Client class for storing client information
     static class Client {
         String clientId;
-        String clientName;
-        BufferedReader reader;
-        BufferedWriter writer;
-        Socket socket;
+        volatile String clientName;
+        MessageReader reader;
+        BufferedOutputStream writer;
+        volatile Socket socket;
+
+        //presented by the client to resume its session after a dropped connection
+        String token;
+
+        //frames waiting for the writer thread of this client
+        OutboundQueue outbound;
+
+        //pings the client when it goes quiet, null when heartbeats are off
+        Heartbeat heartbeat;
+
+        //limits the chat messages of the client, null when limiting is off
+        TokenBucket limiter;
+
+        //journal frames last sent to the client, another fetch waits until they left the queue
+        Frame fetched;
     }
 
     // Constants
     public static final String METHOD_GET_ID = "get id";
     public static final String METHOD_NEW_USER = "new user";
     public static final String METHOD_SEND_MSG = "send message";
+    public static final String METHOD_PING = "ping";
+    public static final String METHOD_PONG = "pong";
+    public static final String METHOD_RATE_LIMITED = "rate limited";
+    public static final String METHOD_STATS = "stats";
+    public static final String METHOD_FETCH_HISTORY = "fetch history";
+    public static final String METHOD_PEER_HELLO = "peer hello";
+    public static final String METHOD_PEER_ACK = "peer ack";
+    public static final String METHOD_DIRECT_MSG = "direct message";
 
     public static final String KEY_TYPE = "type";
     public static final String KEY_USER_ID = "userId";
     public static final String KEY_USER_NAME = "userName";
     public static final String KEY_MESSAGE = "message";
+    public static final String KEY_OFFSET = "offset";
+    public static final String KEY_COMPRESSION = "compression";
+    public static final String KEY_NODE = "node";
+    public static final String KEY_LOCAL = "local";
+    public static final String KEY_SEQUENCE = "sequence";
+    public static final String KEY_TOKEN = "token";
+    public static final String KEY_RESUMED = "resumed";
+    public static final String KEY_GRACE_MILLIS = "graceMillis";
+    public static final String KEY_TO = "to";
+
+    //port the server listens on for clients, e.g. -Dchat.port=8081 to run several nodes on one machine
+    public static final String PROPERTY_PORT = "chat.port";
 
     ServerSocket serverSocket;
 
-    // List of clients
-    List<Client> clients;
+    // Registry of connected clients
+    ClientRegistry clients;
+
+    // Starts a virtual thread per client, null when each client gets a platform thread
+    ExecutorService virtualThreads;
+
+    // Size of each client's outbound queue and what to do when it is full
+    int queueCapacity;
+    OutboundQueue.OverflowPolicy overflowPolicy;
+
+    // Batch size and wait for coalescing several frames into one socket write, 0 bytes turns it off
+    int coalesceBytes;
+    long coalesceMicros;
+
+    // Smallest frame sent compressed to clients that agree on compression, 0 turns it off
+    int compressThreshold;
+
+    // Recent broadcast frames replayed to joining clients, null when turned off
+    HistoryRing history;
+
+    // Journal of every broadcast frame on disk, null when no directory is set
+    Journal journal;
+
+    // Other servers sharing this chat, null when the server runs on its own
+    Cluster cluster;
+
+    // Workers splitting each broadcast between them, null when the sender's thread does it alone
+    FanOut fanOut;
 
-    Server(ServerSocket serverSocket) {
+    // Sessions of dropped clients waiting for them to come back, null when resumption is off
+    SessionStore<Client> sessions;
+
+    // Timers of the heartbeats and how long a client may stay silent, null when heartbeats are off
+    TimingWheel timers;
+    long heartbeatIdleMillis;
+    long heartbeatTimeoutMillis;
+
+    // Messages per second and burst allowed to each client, a rate of 0 turns limiting off
+    double messageRate;
+    int messageBurst;
+
+    // Number of chat messages refused for going over a rate
+    LongAdder rejectedMessages = new LongAdder();
+
+    // Counters and latency histograms, always on
+    Stats stats = new Stats();
+
+    Server(ServerSocket serverSocket) throws IOException {
+        this(serverSocket, false);
+    }
+
+    Server(ServerSocket serverSocket, boolean virtualThreads) throws IOException {
         this.serverSocket = serverSocket;
-        this.clients = new ArrayList<>();
+        this.clients = new ClientRegistry();
+        if (virtualThreads) this.virtualThreads = newVirtualThreadExecutor();
+        this.queueCapacity = Integer.getInteger(OutboundQueue.PROPERTY_CAPACITY, OutboundQueue.DEFAULT_CAPACITY);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.parse(
+                System.getProperty(OutboundQueue.PROPERTY_POLICY, OutboundQueue.DEFAULT_POLICY.name()));
+        this.coalesceBytes = Integer.getInteger(OutboundQueue.PROPERTY_COALESCE_BYTES, 0);
+        this.coalesceMicros = Long.getLong(OutboundQueue.PROPERTY_COALESCE_MICROS, 0);
+        this.compressThreshold = Integer.getInteger(Codec.PROPERTY_COMPRESS_THRESHOLD, Codec.DEFAULT_COMPRESS_THRESHOLD);
+        this.messageRate = Double.parseDouble(System.getProperty(TokenBucket.PROPERTY_RATE, String.valueOf(TokenBucket.DEFAULT_RATE)));
+        this.messageBurst = Integer.getInteger(TokenBucket.PROPERTY_BURST, TokenBucket.DEFAULT_BURST);
+        this.heartbeatIdleMillis = Long.getLong(Heartbeat.PROPERTY_IDLE_MILLIS, Heartbeat.DEFAULT_IDLE_MILLIS);
+        this.heartbeatTimeoutMillis = Long.getLong(Heartbeat.PROPERTY_TIMEOUT_MILLIS, Heartbeat.DEFAULT_TIMEOUT_MILLIS);
+        if (heartbeatIdleMillis > 0) {
+            //100 ms ticks, one revolution of the wheel is about 51 seconds
+            this.timers = new TimingWheel(100, 512);
+            timers.start();
+        }
+        this.sessions = SessionStore.fromProperties(timers);
+        this.history = HistoryRing.fromProperties();
+        this.journal = Journal.fromProperties();
+        this.fanOut = FanOut.fromProperties(this);
+        this.cluster = Cluster.fromProperties(this::deliver);
     }
 
 
@@ -49,37 +154,27 @@ public class Server {
                 //create a new client
                 Client client = new Client();
                 client.socket = socket;
-                client.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                client.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                client.reader = new MessageReader(socket.getInputStream());
+                client.writer = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, coalesceBytes));
+
+                //frames are already batched when coalescing, Nagle would only hold the batches back
+                if (coalesceBytes > 0) socket.setTcpNoDelay(true);
+
+                //every client gets its own writer thread draining its outbound queue
+                client.outbound = new OutboundQueue(socket, client.writer, queueCapacity, overflowPolicy,
+                        coalesceBytes, coalesceMicros, stats);
+                if (messageRate > 0) client.limiter = new TokenBucket(messageRate, messageBurst);
+                startClientThread(client.outbound);
 
                 //generate a unique id for the client and send it to the client
                 client.clientId = Utils.generateId();
+                if (sessions != null) client.token = SessionStore.newToken();
                 sendIDToClient(client);
                 clients.add(client);
+                startHeartbeat(client);
 
                 //forward each client to a new thread
-                new Thread(() -> {
-                    while (!client.socket.isClosed()) {
-                        try {
-                            //read data from client
-                            String data = client.reader.readLine();
-
-                            //parse the data to a map
-                            Map<String, String> map = Utils.messageToMap(data);
-
-                            //if method new user
-                            if (map.get(KEY_TYPE).equals(METHOD_NEW_USER)) {
-                                newClient(map);
-                            }
-                            //if method send message
-                            else if (map.get(KEY_TYPE).equals(METHOD_SEND_MSG)) {
-                                sendChat(map);
-                            }
-                        } catch (Exception e) {
-                            disconnectClient(client);
-                        }
-                    }
-                }).start();
+                startClientThread(() -> serve(client));
             } catch (Exception e) {
                 System.out.println("Server Disconnected");
             }
@@ -87,6 +182,121 @@ public class Server {
     }
 
 
+    /**
+     * Method to read and handle the messages of a client until its connection closes
+     *
+     * @param client client to serve
+     */
+    private void serve(Client client) {
+        //a resumed client gets a new socket, this loop stays with the one it started on
+        Socket socket = client.socket;
+        MessageReader reader = client.reader;
+
+        while (!socket.isClosed()) {
+            try {
+                //read the next message, the same object is reused for every message of this client
+                Message message = reader.next();
+
+                //any message, a pong included, shows the client is alive
+                if (client.heartbeat != null) client.heartbeat.seen();
+                stats.received(message.length);
+
+                //replies follow the format the client last spoke
+                client.outbound.setFormat(message.format);
+
+                //if method new user
+                if (message.is(METHOD_NEW_USER)) {
+                    acceptCompression(message, client);
+                    Client resumed = resumeSession(message, client);
+                    if (resumed != null) {
+                        //this thread reads for the resumed client from now on
+                        client = resumed;
+                        continue;
+                    }
+                    newClient(message);
+                }
+                //if method send message
+                else if (message.is(METHOD_SEND_MSG)) {
+                    sendChat(message, client);
+                }
+                //if method direct message
+                else if (message.is(METHOD_DIRECT_MSG)) {
+                    sendDirect(message, client);
+                }
+                //if method fetch history
+                else if (message.is(METHOD_FETCH_HISTORY)) {
+                    fetchHistory(message, client);
+                }
+                //if method stats
+                else if (message.is(METHOD_STATS)) {
+                    sendStats(message, client);
+                }
+            } catch (Exception e) {
+                //a client that already resumed on another connection is not disconnected
+                if (client.socket != socket) return;
+                disconnectClient(client);
+            }
+        }
+    }
+
+
+    /**
+     * Method to run the read loop of a client on its own thread
+     * <p>
+     * Virtual threads park instead of holding a platform thread while blocked in
+     * readLine or in a socket write, so thousands of mostly idle clients only cost
+     * a small heap allocated stack each.
+     *
+     * @param task read loop of the client
+     */
+    private void startClientThread(Runnable task) {
+        if (virtualThreads != null) {
+            virtualThreads.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+
+    /**
+     * Method to create an executor starting a virtual thread per task
+     * <p>
+     * Looked up reflectively, so the server still compiles and runs on JDKs before 21 and
+     * serves clients on platform threads there.
+     *
+     * @return the executor, null if this JDK has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need JDK 21, serving clients on platform threads");
+            return null;
+        }
+    }
+
+
+    /**
+     * Method to watch a client for silence, an idle client is pinged and evicted if it does not answer
+     *
+     * @param client client to watch
+     */
+    private void startHeartbeat(Client client) {
+        if (timers == null) return;
+
+        client.heartbeat = new Heartbeat(timers, heartbeatIdleMillis, heartbeatTimeoutMillis,
+                //the wheel thread never waits for a full queue, the client then just misses this ping
+                () -> client.outbound.tryOffer(Heartbeat.PING),
+                () -> {
+                    System.out.println("Client timed out: " + (client.clientName == null ? client.clientId : client.clientName));
+
+                    //only close the socket here, the reader thread of the client disconnects it off the timer thread
+                    closeSocket(client);
+                });
+        client.heartbeat.start();
+    }
+
+
     /**
      * Method for sending id to the client
      *
@@ -94,34 +304,113 @@ public class Server {
      */
     public void sendIDToClient(Client client) {
         try {
-            Map<String, String> map = new HashMap<>();
-            map.put(Server.KEY_USER_ID, client.clientId);
-            map.put(Server.KEY_USER_NAME, client.clientName);
-            map.put(Server.KEY_TYPE, Server.METHOD_GET_ID);
-            client.writer.write(map.toString());
-            client.writer.newLine();
-            client.writer.flush();
+            sendFrame(client, Frame.of(idMessage(client, false)));
         } catch (Exception e) {
             System.out.println("Error sending id to client");
         }
     }
 
 
+    /**
+     * Method to build the get id message of a client
+     *
+     * @param client  client the message is for
+     * @param resumed whether the client just took its parked session back
+     * @return get id message
+     */
+    private Map<String, String> idMessage(Client client, boolean resumed) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_USER_ID, client.clientId);
+        map.put(Server.KEY_TYPE, Server.METHOD_GET_ID);
+
+        //a resumed client is told so and gets its name back, a new one has no name yet
+        if (resumed) {
+            map.put(Server.KEY_USER_NAME, client.clientName);
+            map.put(Server.KEY_RESUMED, "true");
+        }
+
+        //token to resume the session with if the connection drops, and how long it is kept
+        if (client.token != null) {
+            map.put(Server.KEY_TOKEN, client.token);
+            map.put(Server.KEY_GRACE_MILLIS, Long.toString(sessions.graceMillis()));
+        }
+
+        //offer compression, the client accepts it in its new user message
+        if (compressThreshold > 0) map.put(Server.KEY_COMPRESSION, Codec.COMPRESSION_DEFLATE);
+        return map;
+    }
+
+
+    /**
+     * Method to hand a new connection over to the parked session whose token it presents
+     * <p>
+     * The new connection was only a stand-in and goes without a join or leave broadcast. The
+     * client is sent its old id and name, and then every frame queued while it was away, up to
+     * the capacity of its queue. Frames that were being written when the connection dropped
+     * are lost with it.
+     *
+     * @param message new user message holding the token
+     * @param client  stand-in client of the new connection
+     * @return resumed client, null if there is no session for the token
+     */
+    private Client resumeSession(Message message, Client client) throws IOException {
+        if (sessions == null) return null;
+
+        Client resumed = sessions.resume(message.get(KEY_TOKEN));
+        if (resumed == null) return null;
+
+        //drop the stand-in quietly, it never had a name
+        if (client.heartbeat != null) client.heartbeat.stop();
+        client.outbound.close();
+        clients.remove(client);
+
+        //the new token the client was just given replaces the used one
+        resumed.token = client.token;
+        resumed.reader = client.reader;
+        resumed.writer = client.writer;
+        resumed.socket = client.socket;
+        resumed.outbound.setFormat(client.outbound.format());
+        acceptCompression(message, resumed);
+
+        //the reply goes out ahead of the frames queued while the client was away
+        Frame.of(idMessage(resumed, true)).writeTo(client.writer, client.outbound.format());
+        client.writer.flush();
+
+        resumed.outbound.attach(client.socket, client.writer);
+        startClientThread(resumed.outbound);
+        startHeartbeat(resumed);
+        System.out.println("Client Resumed: " + resumed.clientName);
+        return resumed;
+    }
+
+
+    /**
+     * Method to compress large frames for a client that accepted the offer in its new user message
+     *
+     * @param message new user message of the client
+     * @param client  client that sent it
+     */
+    private void acceptCompression(Message message, Client client) {
+        if (compressThreshold > 0 && Codec.COMPRESSION_DEFLATE.equals(message.get(KEY_COMPRESSION))) {
+            client.outbound.setCompression(compressThreshold);
+        }
+    }
+
+
     /**
      * Method to send a unique id to the client
      *
-     * @param map map containing the client information
+     * @param message message containing the client information
      */
-    private void newClient(Map<String, String> map) {
-        String senderId = map.get(KEY_USER_ID);
-        String senderName = map.get(KEY_USER_NAME);
+    private void newClient(Message message) {
+        String senderId = message.get(KEY_USER_ID);
+        String senderName = message.get(KEY_USER_NAME);
 
         //searching for the client
-        for (int i = 0; i < clients.size(); i++) {
-            if (clients.get(i).clientId.equals(senderId)) {
-                clients.get(i).clientName = senderName;
-                break;
-            }
+        Client client = clients.get(senderId);
+        if (client != null) {
+            clients.rename(client, senderName);
+            replayHistory(client);
         }
         System.out.println("Client Connected: " + senderName);
 
@@ -130,44 +419,219 @@ public class Server {
     }
 
 
+    /**
+     * Method to send a client what was said before it joined
+     * <p>
+     * The client only receives broadcasts once it has a name, so frames stored before this
+     * point are replayed and later ones arrive live. A frame broadcast at the very moment of
+     * the join may arrive both ways.
+     *
+     * @param client client that just entered its name
+     */
+    private void replayHistory(Client client) {
+        if (history == null) return;
+
+        Frame frame = history.replay(history.position(), client.outbound.format());
+        if (frame != null) {
+            sendFrame(client, frame);
+        }
+    }
+
+
     /**
      * Method to send a message to all the clients
      *
-     * @param map map containing the message information
+     * @param message message containing the message information
+     * @param client  client that sent the message
+     */
+    private void sendChat(Message message, Client client) {
+        //refuse messages over the client's rate before they cost a fan-out
+        if (client.limiter != null && !client.limiter.tryAcquire()) {
+            rejectedMessages.increment();
+            sendFrame(client, TokenBucket.REJECTED);
+            return;
+        }
+
+        String senderId = message.get(KEY_USER_ID);
+        String senderName = message.get(KEY_USER_NAME);
+        String msg = message.get(KEY_MESSAGE);
+
+        //broadcast the message to all the clients, a cluster that cannot take more refuses it like the rate does
+        if (!broadcastMessage(msg, senderId, senderName)) {
+            rejectedMessages.increment();
+            sendFrame(client, TokenBucket.REJECTED);
+        }
+    }
+
+
+    /**
+     * Method to send a message to a single client, found by id or by name
+     * <p>
+     * The recipient is looked up in the registry's indexes, so no other client is visited. The
+     * sender is told if there is nobody by that id or name.
+     *
+     * @param message message containing the recipient and the text
+     * @param client  client that sent the message
+     */
+    private void sendDirect(Message message, Client client) {
+        //only clients that entered a name send messages
+        if (client.clientName == null) return;
+
+        //direct messages count against the same rate as chat messages
+        if (client.limiter != null && !client.limiter.tryAcquire()) {
+            rejectedMessages.increment();
+            sendFrame(client, TokenBucket.REJECTED);
+            return;
+        }
+
+        String to = message.get(KEY_TO);
+        Client recipient = to == null ? null : clients.find(to);
+
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_DIRECT_MSG);
+        map.put(Server.KEY_TO, to);
+
+        //nobody to deliver to, the reply without a sender tells the client so
+        if (recipient == null || recipient.clientName == null) {
+            sendFrame(client, Frame.of(map));
+            return;
+        }
+
+        //the id lets the recipient answer the sender even if the name is taken twice
+        map.put(Server.KEY_USER_ID, client.clientId);
+        map.put(Server.KEY_USER_NAME, client.clientName);
+        map.put(Server.KEY_MESSAGE, message.get(KEY_MESSAGE));
+        sendFrame(recipient, Frame.of(map));
+    }
+
+
+    /**
+     * Method to send a client the journal frames from the offset it asks for
+     * <p>
+     * The frames are followed by a fetch history reply holding the offset to ask for next. A
+     * fetch is refused with a rate limited reply while the frames of the previous one are still
+     * queued, or when the client is over its rate.
+     *
+     * @param message message containing the offset
+     * @param client  client asking
+     */
+    private void fetchHistory(Message message, Client client) {
+        if (journal == null) return;
+
+        //fetches count against the chat rate, and a client has at most one read in its queue
+        boolean queued = client.fetched != null && client.outbound.contains(client.fetched);
+        if (queued || (client.limiter != null && !client.limiter.tryAcquire())) {
+            rejectedMessages.increment();
+            sendFrame(client, TokenBucket.REJECTED);
+            return;
+        }
+
+        Journal.Batch batch = journal.read(parseOffset(message.get(KEY_OFFSET)), client.outbound.format());
+        if (batch.frame != null) {
+            client.fetched = batch.frame;
+            sendFrame(client, batch.frame);
+        }
+
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_FETCH_HISTORY);
+        map.put(Server.KEY_OFFSET, Long.toString(batch.next));
+        sendFrame(client, Frame.of(map));
+    }
+
+
+    /**
+     * Method to read the offset of a fetch history message, 0 if it is missing or not a number
+     *
+     * @param offset offset sent by the client
+     * @return offset to read from
      */
-    private void sendChat(Map<String, String> map) {
-        String senderId = map.get(KEY_USER_ID);
-        String senderName = map.get(KEY_USER_NAME);
-        String msg = map.get(KEY_MESSAGE);
+    static long parseOffset(String offset) {
+        try {
+            return offset == null ? 0 : Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 
-        //broadcast the message to all the clients
-        broadcastMessage(msg, senderId, senderName);
+
+    /**
+     * Method to send an admin a snapshot of the counters and latency percentiles
+     *
+     * @param message message containing the admin token
+     * @param client  client asking
+     */
+    private void sendStats(Message message, Client client) {
+        //requests from anybody but an admin are ignored
+        if (!stats.allowed(client.socket.getInetAddress(), message.get(KEY_MESSAGE))) return;
+
+        Map<String, String> map = stats.snapshot();
+        map.put("rateLimited", Long.toString(rejectedMessages.sum()));
+        if (journal != null) map.put("journalDropped", Long.toString(journal.dropped()));
+        sendFrame(client, Frame.of(map));
     }
 
 
     /**
      * Method to disconnect a client
+     * <p>
+     * With resumption on a client that entered a name is parked instead, and only leaves the
+     * chat if it does not come back within the grace window.
      *
      * @param client client to disconnect
      */
     public void disconnectClient(Client client) {
+        if (sessions != null && client.clientName != null) {
+            //stop the writer thread but keep queueing, only the first call goes further
+            if (!client.outbound.detach()) return;
+            if (client.heartbeat != null) client.heartbeat.stop();
+
+            System.out.println("Client Dropped: " + client.clientName);
+            //the leave is broadcast on a client thread, never on the shared timer thread
+            sessions.park(client.token, client, () -> startClientThread(() -> leave(client)));
+            closeSocket(client);
+            return;
+        }
+        leave(client);
+    }
+
+
+    /**
+     * Method to remove a client from the chat for good
+     *
+     * @param client client leaving
+     */
+    private void leave(Client client) {
+        //stop the writer thread, only the first call goes further
+        if (!client.outbound.close()) {
+            return;
+        }
+        if (client.heartbeat != null) client.heartbeat.stop();
+
+        //remove the client from the registry
+        clients.remove(client);
+
         //client disconnected before without entering a name
         if (client.clientName == null) {
+            closeSocket(client);
             return;
         }
 
         System.out.println("Client Disconnected: " + client.clientName);
 
-        //remove the client from the list
-        clients.remove(client);
-
         //broadcast the client disconnection to all the clients
         broadcastMessage("left the chat", client.clientId, client.clientName);
+        closeSocket(client);
+    }
+
+
+    /**
+     * Method to close the socket of a client, which also ends its read loop
+     *
+     * @param client client to close
+     */
+    private void closeSocket(Client client) {
         try {
             client.socket.close();
-
-            //terminate the thread of the client
-            Thread.currentThread().join();
         } catch (Exception ex) {
             System.out.println("Error in disconnecting client");
         }
@@ -176,30 +640,114 @@ public class Server {
 
     /**
      * Method to broadcast a message to all the clients
+     * <p>
+     * In a cluster the message is only delivered once the sequencer has given it its place, on
+     * every node alike.
      *
      * @param message    message to broadcast
      * @param senderId   id of the sender
      * @param senderName name of the sender
+     * @return false if the cluster refused the message as its sequencer is too far behind
      */
-    public void broadcastMessage(String message, String senderId, String senderName) {
+    public boolean broadcastMessage(String message, String senderId, String senderName) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_MESSAGE, message);
+        map.put(Server.KEY_USER_NAME, senderName);
+
+        if (cluster != null) {
+            return cluster.publish(map, senderId);
+        }
+        deliver(map, senderId);
+        return true;
+    }
 
-        for (Client client : clients) {
-            //send the message to all the clients except the sender
-            if (client.clientId.equals(senderId)) continue;
 
+    /**
+     * Method to send a message to all the local clients
+     *
+     * @param map      message to send
+     * @param senderId id of the sender, null for messages from other nodes
+     */
+    void deliver(Map<String, String> map, String senderId) {
+        //encode the message once, every client is sent the same frame
+        Frame frame = Frame.of(map);
+
+        //with shards every worker sends the frame to its own part of the clients, recorded in the order they are fed
+        if (fanOut != null) {
             try {
-                Map<String, String> map = new HashMap<>();
-                map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
-                map.put(Server.KEY_MESSAGE, message);
-                map.put(Server.KEY_USER_NAME, senderName);
-
-                client.writer.write(map.toString());
-                client.writer.newLine();
-                client.writer.flush();
-            } catch (Exception e) {
+                fanOut.publish(frame, senderId);
+            } catch (InterruptedException e) {
                 System.out.println("Error broadcasting message");
             }
+            return;
         }
+
+        record(frame);
+        int[] recipients = {0};
+        clients.forEach(client -> {
+            //send the message to all the clients except the sender and those still entering a name
+            if (client.clientId.equals(senderId)) return;
+            if (client.clientName == null) return;
+
+            try {
+                sendFrame(client, frame);
+                recipients[0]++;
+            } catch (Exception e) {
+                System.out.println("Error broadcasting message");
+            }
+        });
+
+        //the frame was created at the start of the broadcast
+        stats.broadcast(recipients[0], System.nanoTime() - frame.created());
+    }
+
+
+    /**
+     * Method to keep a broadcast in the history and the journal
+     *
+     * @param frame frame of the broadcast
+     */
+    void record(Frame frame) {
+        if (history != null) history.append(frame);
+        if (journal != null) journal.append(frame);
+    }
+
+
+    /**
+     * Method to get the outbound queue depth of every client, large values point at slow consumers
+     *
+     * @return queue depth by client id
+     */
+    public Map<String, Integer> queueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        clients.forEach(client -> depths.put(client.clientId, client.outbound.depth()));
+        return depths;
+    }
+
+
+    /**
+     * Method to get the number of refused chat messages of every client
+     *
+     * @return rejection count by client id
+     */
+    public Map<String, Long> rateLimitRejections() {
+        Map<String, Long> rejections = new HashMap<>();
+        clients.forEach(client -> {
+            if (client.limiter != null) rejections.put(client.clientId, client.limiter.rejected());
+        });
+        return rejections;
+    }
+
+
+    /**
+     * Method to queue an encoded frame for a client, the client's writer thread sends it
+     *
+     * @param client client to send the frame to
+     * @param frame  frame to send
+     */
+    public void sendFrame(Client client, Frame frame) {
+        client.outbound.offer(frame);
     }
 
 
@@ -208,16 +756,18 @@ public class Server {
      */
     public static void main(String[] args) {
         ServerSocket serverSocket;
+        int port = Integer.getInteger(PROPERTY_PORT, 8080);
         try {
             //create a new server socket
-            serverSocket = new ServerSocket(8080);
-            System.out.println("Server running on port 8080");
+            serverSocket = new ServerSocket(port);
+            System.out.println("Server running on port " + port);
 
-            //create a new server
-            Server server = new Server(serverSocket);
+            //create a new server, "java Server virtual" serves clients on virtual threads
+            boolean virtualThreads = args.length > 0 && args[0].equals("virtual");
+            Server server = new Server(serverSocket, virtualThreads);
             server.startServer();
         } catch (Exception e) {
-            System.out.println("Error starting server on port 8080");
+            System.out.println("Error starting server on port " + port);
         }
     }
 }
@@ -0,0 +1,138 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions of dropped clients kept for a grace window, so a client that reconnects in time
+ * resumes as the same user instead of joining from scratch.
+ * <p>
+ * Every client is given a random token with its id. When its connection drops the server parks
+ * the client under that token, it stays a member of the chat and its outbound queue keeps the
+ * frames it misses. A new connection presenting the token takes the session over, and only a
+ * session that is not resumed before the window ends is treated as a real leave.
+ * <p>
+ * Turned on with e.g. {@code -Dchat.resume.grace.millis=30000}. It is off by default, as every
+ * client that drops would otherwise only leave the chat once its window ends.
+ *
+ * @param <T> type of the parked clients
+ */
+public class SessionStore<T> {
+
+    //settings read by the servers, a grace window of 0 turns resumption off
+    public static final String PROPERTY_GRACE_MILLIS = "chat.resume.grace.millis";
+    public static final long DEFAULT_GRACE_MILLIS = 0;
+
+    //random bytes of a token, too many to guess
+    private static final int TOKEN_BYTES = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Client waiting for its token and the timer ending its grace window
+    private static final class Parked<T> {
+        final T client;
+        volatile TimingWheel.Timeout expiry;
+
+        Parked(T client) {
+            this.client = client;
+        }
+    }
+
+    private final Map<String, Parked<T>> parked = new ConcurrentHashMap<>();
+    private final TimingWheel timers;
+    private final long graceMillis;
+
+    public SessionStore(TimingWheel timers, long graceMillis) {
+        this.timers = timers;
+        this.graceMillis = graceMillis;
+    }
+
+
+    /**
+     * Method to create the store described by the system properties
+     *
+     * @param timers timing wheel of the server, a coarse one is started if it is null
+     * @return store, null if resumption is turned off
+     */
+    public static <T> SessionStore<T> fromProperties(TimingWheel timers) {
+        long graceMillis = Long.getLong(PROPERTY_GRACE_MILLIS, DEFAULT_GRACE_MILLIS);
+        if (graceMillis <= 0) return null;
+
+        if (timers == null) {
+            //one second ticks are plenty for a window of seconds
+            timers = new TimingWheel(1000, 64);
+            timers.start();
+        }
+        return new SessionStore<>(timers, graceMillis);
+    }
+
+
+    /**
+     * Method to get how long the session of a dropped client is kept
+     *
+     * @return grace window in milliseconds
+     */
+    public long graceMillis() {
+        return graceMillis;
+    }
+
+
+    /**
+     * Method to create a new token
+     *
+     * @return random url safe token
+     */
+    public static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+
+    /**
+     * Method to keep the session of a dropped client until the grace window ends
+     *
+     * @param token  token of the client
+     * @param client client to keep
+     * @param expire run on the timer thread if the client does not come back in time, so it
+     *               hands anything that may block, such as a leave broadcast, to another thread
+     */
+    public void park(String token, T client, Runnable expire) {
+        //parked before the timer exists, so the timer always finds the entry it was set for
+        Parked<T> entry = new Parked<>(client);
+        parked.put(token, entry);
+        entry.expiry = timers.schedule(() -> {
+            //whoever removes the entry first, the timer or the resuming client, owns the session
+            if (parked.remove(token, entry)) expire.run();
+        }, graceMillis);
+    }
+
+
+    /**
+     * Method to take over a parked session
+     *
+     * @param token token presented by the reconnecting client
+     * @return parked client, null if the token is unknown or its window is over
+     */
+    public T resume(String token) {
+        if (token == null) return null;
+
+        Parked<T> entry = parked.remove(token);
+        if (entry == null) return null;
+
+        //null if the client came back before its timer was even set, the timer then finds nothing
+        TimingWheel.Timeout expiry = entry.expiry;
+        if (expiry != null) expiry.cancel();
+        return entry.client;
+    }
+
+
+    /**
+     * Method to get the number of parked sessions
+     *
+     * @return parked session count
+     */
+    public int size() {
+        return parked.size();
+    }
+}
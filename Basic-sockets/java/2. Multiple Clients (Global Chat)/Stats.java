@@ -0,0 +1,116 @@
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always-on counters and latency histograms of a chat server.
+ * <p>
+ * Everything is recorded without locks: counters are {@link LongAdder}s and latencies go into
+ * {@link Histogram}s, so recording costs tens of nanoseconds and never makes one client wait
+ * for another. A snapshot is sent to admins asking with a stats message.
+ */
+public final class Stats {
+
+    //admins prove themselves with this token in the message field, without it only local clients may ask
+    public static final String PROPERTY_ADMIN_TOKEN = "chat.admin.token";
+
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+
+    //recipients per broadcast
+    final Histogram fanout = new Histogram();
+
+    //time to encode a broadcast and queue it for every recipient
+    final Histogram broadcastNanos = new Histogram();
+
+    //time from creating a frame until it was written to the socket of a recipient
+    final Histogram deliveryNanos = new Histogram();
+
+    private final String adminToken = System.getProperty(PROPERTY_ADMIN_TOKEN);
+
+
+    /**
+     * Method to count a received message
+     *
+     * @param bytes size of its frame
+     */
+    public void received(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+
+    /**
+     * Method to record a broadcast
+     *
+     * @param recipients number of clients the frame was queued for
+     * @param nanos      time the broadcast took
+     */
+    public void broadcast(int recipients, long nanos) {
+        fanout.record(recipients);
+        broadcastNanos.record(nanos);
+    }
+
+
+    /**
+     * Method to count a frame written to a socket
+     *
+     * @param frame frame written
+     * @param bytes number of bytes written
+     * @param now   System.nanoTime() after the write
+     */
+    public void sent(Frame frame, int bytes, long now) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        if (frame.timed()) deliveryNanos.record(now - frame.created());
+    }
+
+
+    /**
+     * Method to check whether a client may ask for the stats
+     *
+     * @param address address the client connected from
+     * @param token   token sent by the client, may be null
+     * @return true for admins
+     */
+    public boolean allowed(InetAddress address, String token) {
+        if (adminToken != null) return adminToken.equals(token);
+        return address != null && address.isLoopbackAddress();
+    }
+
+
+    /**
+     * Method to build a stats message with the current counters and percentiles
+     *
+     * @return message of type stats
+     */
+    public Map<String, String> snapshot() {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_STATS);
+        map.put("messagesIn", Long.toString(messagesIn.sum()));
+        map.put("bytesIn", Long.toString(bytesIn.sum()));
+        map.put("messagesOut", Long.toString(messagesOut.sum()));
+        map.put("bytesOut", Long.toString(bytesOut.sum()));
+
+        Histogram.Snapshot fanouts = fanout.snapshot();
+        map.put("broadcasts", Long.toString(fanouts.count()));
+        map.put("fanoutMean", String.format(Locale.ROOT, "%.1f", fanouts.mean()));
+        map.put("fanoutMax", Long.toString(fanouts.percentile(100)));
+
+        putPercentiles(map, "broadcastNanos", broadcastNanos.snapshot());
+        putPercentiles(map, "deliveryNanos", deliveryNanos.snapshot());
+        return map;
+    }
+
+
+    private static void putPercentiles(Map<String, String> map, String name, Histogram.Snapshot snapshot) {
+        map.put(name + "P50", Long.toString(snapshot.percentile(50)));
+        map.put(name + "P99", Long.toString(snapshot.percentile(99)));
+        map.put(name + "P999", Long.toString(snapshot.percentile(99.9)));
+        map.put(name + "Max", Long.toString(snapshot.percentile(100)));
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures what the always-on {@link Stats} cost per chat message.
+ * <p>
+ * A message is counted once when received, once as a broadcast and once per recipient when
+ * written, as the servers do. Run with {@code java StatsBenchmark [threads] [recipients]}, more
+ * threads show the cost when every core records into the same counters.
+ */
+public class StatsBenchmark {
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 2_000_000;
+
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_USER_NAME, "alice");
+        map.put(Server.KEY_MESSAGE, "hello everyone in the global chat");
+        Frame frame = Frame.of(map);
+        int length = frame.length(Codec.Format.TEXT);
+
+        for (int n : threads > 1 ? new int[]{1, threads} : new int[]{1}) {
+            Stats stats = new Stats();
+            run(n, () -> record(stats, frame, length, recipients, WARMUP));
+            long time = run(n, () -> record(stats, frame, length, recipients, ITERATIONS));
+            System.out.printf("%2d threads, %d recipients %8.1f ns/msg %8.1f ns/record%n",
+                    n, recipients, (double) time / ITERATIONS, (double) time / ITERATIONS / (recipients + 2));
+        }
+    }
+
+
+    /**
+     * Method to record messages the way a server does
+     */
+    private static void record(Stats stats, Frame frame, int length, int recipients, int messages) {
+        for (int i = 0; i < messages; i++) {
+            stats.received(length);
+            long start = System.nanoTime();
+            stats.broadcast(recipients, System.nanoTime() - start);
+            for (int j = 0; j < recipients; j++) {
+                stats.sent(frame, length, start);
+            }
+        }
+    }
+
+
+    /**
+     * Method to run a task on several threads at once
+     *
+     * @return nanoseconds until the last thread finished
+     */
+    private static long run(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (InterruptedException ignored) {
+                }
+                done.countDown();
+            }).start();
+        }
+        long before = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - before;
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline benchmarks of the protocol helpers and the room fan-out, in the spirit of JMH.
+ * <p>
+ * Every benchmark gets warmup iterations followed by measured ones of a second each, and the
+ * result is the mean over the measured iterations with its standard deviation. Modes:
+ * <ul>
+ *     <li>{@code thrpt} operations per second</li>
+ *     <li>{@code avgt} nanoseconds per operation</li>
+ *     <li>{@code gc} bytes allocated per operation and the collections during the measurement</li>
+ * </ul>
+ * Run with {@code java ChatBenchmark [thrpt|avgt|gc|all] [name filter]}, e.g.
+ * {@code java ChatBenchmark gc broadcast}. Results are printed one line per benchmark, so a run
+ * before a protocol or fan-out change can be diffed against a run after it.
+ */
+public class ChatBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    //calls between clock reads, keeps the clock out of the measurement of short operations
+    private static final int BATCH = 100;
+
+    //keeps results alive so the JIT cannot drop the work
+    static int sink;
+
+
+    // Body of a measured benchmark
+    interface Task {
+        void run() throws Exception;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "all";
+        String filter = args.length > 1 ? args[1] : "";
+
+        Map<String, Task> benchmarks = benchmarks();
+        System.out.printf("%-28s %-6s %16s %12s  %s%n", "Benchmark", "Mode", "Score", "Error", "Units");
+        for (Map.Entry<String, Task> benchmark : benchmarks.entrySet()) {
+            if (!benchmark.getKey().contains(filter)) continue;
+            if (mode.equals("all") || mode.equals("thrpt")) measure(benchmark.getKey(), "thrpt", benchmark.getValue());
+            if (mode.equals("all") || mode.equals("avgt")) measure(benchmark.getKey(), "avgt", benchmark.getValue());
+            if (mode.equals("all") || mode.equals("gc")) measure(benchmark.getKey(), "gc", benchmark.getValue());
+        }
+        System.exit(0);
+    }
+
+
+    /**
+     * Method to set up the benchmarks, in the order they run
+     */
+    private static Map<String, Task> benchmarks() throws Exception {
+        Map<String, Task> benchmarks = new LinkedHashMap<>();
+
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_USER_ID, Utils.generateId());
+        map.put(Server.KEY_USER_NAME, "alice");
+        map.put(Server.KEY_ROOM_ID, "4242");
+        map.put(Server.KEY_MESSAGE, "hello everyone in the room");
+        String line = map.toString();
+
+        benchmarks.put("messageToMap", () -> sink += Utils.messageToMap(line).size());
+        benchmarks.put("mapToString", () -> sink += (map.toString() + "\n").getBytes(StandardCharsets.UTF_8).length);
+        benchmarks.put("codecEncodeText", () -> sink += Codec.encode(map, Codec.Format.TEXT).length);
+        benchmarks.put("codecEncodeBinary", () -> sink += Codec.encode(map, Codec.Format.BINARY).length);
+        benchmarks.put("generateId", () -> sink += Utils.generateId().length());
+
+        //a few rooms and a nearly full id space, a room is created and deleted every time
+        for (int count : new int[]{10, 8000}) {
+            RoomIdAllocator roomIds = new RoomIdAllocator(1000, 10000);
+            while (roomIds.used() < count) roomIds.allocate();
+            benchmarks.put("allocateRoomId/" + count, () -> {
+                int id = roomIds.allocate();
+                roomIds.release(id);
+                sink += id;
+            });
+        }
+
+        for (int count : new int[]{10, 100, 1000}) {
+            Server server = broadcastServer();
+            List<Server.Client> clients = inMemoryClients(server, count);
+            benchmarks.put("broadcast/" + count, () -> server.broadcastMessage("hello everyone in the room",
+                    "sender", "alice", clients));
+        }
+        return benchmarks;
+    }
+
+
+    /**
+     * Method to create a server that is only used for its broadcast
+     */
+    private static Server broadcastServer() {
+        System.setProperty(Heartbeat.PROPERTY_IDLE_MILLIS, "0");
+        return new Server(null);
+    }
+
+
+    /**
+     * Method to create clients whose writer threads write into a stream that discards everything
+     * <p>
+     * The queues block instead of dropping frames, so a broadcast that outruns the writers waits
+     * for them and the score is the rate the whole fan-out keeps up.
+     */
+    private static List<Server.Client> inMemoryClients(Server server, int count) {
+        List<Server.Client> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Server.Client client = new Server.Client();
+            client.clientId = "client" + i;
+            client.clientName = "user" + i;
+            client.outbound = new OutboundQueue(null, OutputStream.nullOutputStream(), server.queueCapacity,
+                    OutboundQueue.OverflowPolicy.BLOCK, 0, 0, server.stats);
+            Thread writer = new Thread(client.outbound);
+            writer.setDaemon(true);
+            writer.start();
+            clients.add(client);
+        }
+        return clients;
+    }
+
+
+    /**
+     * Method to run the iterations of one benchmark in one mode and print the score
+     */
+    private static void measure(String name, String mode, Task task) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(mode, task);
+        }
+
+        double[] scores = new double[MEASURED_ITERATIONS];
+        long collections = collectionCount();
+        long collectionMillis = collectionMillis();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            scores[i] = iteration(mode, task);
+        }
+        collections = collectionCount() - collections;
+        collectionMillis = collectionMillis() - collectionMillis;
+
+        double mean = 0;
+        for (double score : scores) mean += score;
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        double deviation = Math.sqrt(variance / (scores.length - 1));
+
+        String units = switch (mode) {
+            case "thrpt" -> "ops/s";
+            case "avgt" -> "ns/op";
+            default -> "B/op, " + collections + " gcs, " + collectionMillis + " ms";
+        };
+        System.out.printf("%-28s %-6s %16.3f %12.3f  %s%n", name, mode, mean, deviation, units);
+    }
+
+
+    /**
+     * Method to run a task for one iteration
+     *
+     * @return score of the iteration in the units of the mode
+     */
+    private static double iteration(String mode, Task task) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long operations = 0;
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < BATCH; i++) task.run();
+            operations += BATCH;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+
+        return switch (mode) {
+            case "thrpt" -> operations * 1e9 / elapsed;
+            case "avgt" -> (double) elapsed / operations;
+            default -> (double) bytes / operations;
+        };
+    }
+
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -1,32 +1,46 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 public class Client {
 
     //variables for the client
-    static Socket socket;
+    static volatile Socket socket;
     static String clientId;
     static String roomId;
     static String clientName;
-    static BufferedReader reader;
-    static BufferedWriter writer;
+    static MessageReader reader;
+    static volatile BufferedOutputStream writer;
+
+    //wire format used for messages sent to the server
+    static Codec.Format format = Codec.Format.TEXT;
+
+    //whether the server offered compression, large messages are then sent compressed both ways
+    static boolean compression;
+
+    //token to resume the session with after a dropped connection, null if the server gives none
+    static String token;
+
+    //how long the server keeps a dropped session, sent with the token
+    static long graceMillis;
+
+    //wait between attempts to reconnect, the server keeps the session for its grace window
+    static final long RECONNECT_MILLIS = 1000;
 
 
     /**
      * Method to send a message to the server
      */
     public static void sendMessageToServer() {
-        try {
-            //get message from console to send
-            Scanner scanner = new Scanner(System.in);
-            String msg;
-            while (socket.isConnected()) {
+        //get message from console to send
+        Scanner scanner = new Scanner(System.in);
+        String msg;
+        while (socket.isConnected()) {
+            try {
                 msg = scanner.nextLine();
                 Map<String, String> payload = new HashMap<>();
                 payload.put(Server.KEY_MESSAGE, msg);
@@ -35,12 +49,23 @@ public class Client {
                 payload.put(Server.KEY_ROOM_ID, String.valueOf(roomId));
                 payload.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
 
-                writer.write(payload.toString());
-                writer.newLine();
-                writer.flush();
+                //pasted logs and stack traces are worth compressing
+                byte[] frame = Codec.encode(payload, format);
+                if (compression && frame.length >= Codec.DEFAULT_COMPRESS_THRESHOLD) {
+                    frame = Codec.compress(frame);
+                }
+
+                synchronized (writer) {
+                    writer.write(frame);
+                    writer.flush();
+                }
+            } catch (NoSuchElementException e) {
+                //end of input, nothing more to send
+                break;
+            } catch (Exception e) {
+                //the line is lost, the next one goes to the new connection once it is back
+                System.out.println("Error sending message to server");
             }
-        } catch (Exception e) {
-            System.out.println("Error sending message to server");
         }
     }
 
@@ -52,34 +77,78 @@ public class Client {
 
         while (socket.isConnected()) {
             try {
-                //read data from server
-                String data = reader.readLine();
-
-                //parse the data to a map
-                Map<String, String> payload = Utils.messageToMap(data);
+                //read and parse the next message from the server
+                Message payload = reader.next();
 
                 //if method get id
-                if (payload.get(Server.KEY_TYPE).equals(Server.METHOD_GET_ID)) {
+                if (payload.is(Server.METHOD_GET_ID)) {
                     getClientIdFromServer(payload);
                 }
                 //if method send message
-                else if (payload.get(Server.KEY_TYPE).equals(Server.METHOD_SEND_MSG)) {
+                else if (payload.is(Server.METHOD_SEND_MSG)) {
                     getMessageFromServer(payload);
                 }
                 //if method create room
-                else if (payload.get(Server.KEY_TYPE).equals(Server.METHOD_CREATE_ROOM)) {
+                else if (payload.is(Server.METHOD_CREATE_ROOM)) {
                     getRoomIdFromServer(payload);
                 }
                 //if method join room
-                else if (payload.get(Server.KEY_TYPE).equals(Server.METHOD_JOIN_ROOM)) {
+                else if (payload.is(Server.METHOD_JOIN_ROOM)) {
                     joinRoomFromServer(payload);
                 }
+                //if method ping
+                else if (payload.is(Server.METHOD_PING)) {
+                    sendPong();
+                }
+                //if method rate limited
+                else if (payload.is(Server.METHOD_RATE_LIMITED)) {
+                    System.out.println("Sending too fast, message not delivered");
+                }
             } catch (Exception e) {
                 System.out.println("Server Disconnected");
-                System.exit(0);
+                if (token == null || roomId == null || !reconnect()) System.exit(0);
+            }
+        }
+
+    }
+
+
+    /**
+     * Method to connect again after the connection dropped, while the server still keeps the session
+     *
+     * @return true once connected, the server then answers with a new id
+     */
+    private static boolean reconnect() {
+        for (long waited = 0; waited < graceMillis; waited += RECONNECT_MILLIS) {
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+                connect();
+                System.out.println("Reconnected to server");
+                return true;
+            } catch (Exception e) {
+                //server still unreachable, try again
             }
         }
+        return false;
+    }
+
 
+    /**
+     * Method to answer a ping of the server, which disconnects clients that stay silent
+     */
+    private static void sendPong() {
+        try {
+            Map<String, String> payload = new HashMap<>();
+            payload.put(Server.KEY_TYPE, Server.METHOD_PONG);
+
+            //the listening thread answers while the sending thread may be writing
+            synchronized (writer) {
+                Codec.write(writer, payload, format);
+                writer.flush();
+            }
+        } catch (Exception e) {
+            System.out.println("Error answering ping");
+        }
     }
 
 
@@ -88,9 +157,27 @@ public class Client {
      *
      * @param payload payload to get the id from
      */
-    private static void getClientIdFromServer(Map<String, String> payload) {
+    private static void getClientIdFromServer(Message payload) {
         //get the id from the payload
         clientId = payload.get(Server.KEY_USER_ID);
+        compression = Codec.COMPRESSION_DEFLATE.equals(payload.get(Server.KEY_COMPRESSION));
+        String previousToken = token;
+        token = payload.get(Server.KEY_TOKEN);
+        String grace = payload.get(Server.KEY_GRACE_MILLIS);
+        graceMillis = grace == null ? 0 : Long.parseLong(grace);
+
+        //the server took the old session back, missed messages follow
+        if ("true".equals(payload.get(Server.KEY_RESUMED))) {
+            roomId = payload.get(Server.KEY_ROOM_ID);
+            System.out.println("Resumed room " + roomId);
+            return;
+        }
+
+        //after a reconnect the old token asks for the old session, and the old room, instead of new ones
+        if (clientName != null && roomId != null) {
+            sendNewUser(previousToken);
+            return;
+        }
 
         //now show the menu
         showChoices();
@@ -102,7 +189,7 @@ public class Client {
      *
      * @param payload payload to get the message from
      */
-    private static void getMessageFromServer(Map<String, String> payload) {
+    private static void getMessageFromServer(Message payload) {
         String sender = payload.get(Server.KEY_USER_NAME);
         String msg = payload.get(Server.KEY_MESSAGE);
         System.out.println(sender + ": " + msg);
@@ -114,7 +201,14 @@ public class Client {
      *
      * @param payload payload to get the room id from
      */
-    public static void getRoomIdFromServer(Map<String, String> payload) {
+    public static void getRoomIdFromServer(Message payload) {
+        //if every room id is taken
+        if ("fail".equals(payload.get(Server.KEY_MESSAGE))) {
+            System.out.println("No room available, try again later");
+            showChoices();
+            return;
+        }
+
         //get the room id from the payload
         roomId = payload.get(Server.KEY_ROOM_ID);
         System.out.println("Room " + roomId + " created");
@@ -133,7 +227,7 @@ public class Client {
      *
      * @param payload payload to get the room id from
      */
-    public static void joinRoomFromServer(Map<String, String> payload) {
+    public static void joinRoomFromServer(Message payload) {
         //get message from the payload
         String msg = payload.get(Server.KEY_MESSAGE);
         roomId = payload.get(Server.KEY_ROOM_ID);
@@ -168,7 +262,16 @@ public class Client {
         Scanner scanner = new Scanner(System.in);
         System.out.println("Enter your name");
         clientName = scanner.nextLine();
+        sendNewUser(null);
+    }
 
+
+    /**
+     * Method to send the new user message, optionally with the token of a session to resume
+     *
+     * @param resumeToken token of the dropped session, null for a new one
+     */
+    private static void sendNewUser(String resumeToken) {
         try {
             //send the name to the server
             Map<String, String> payload = new HashMap<>();
@@ -176,9 +279,12 @@ public class Client {
             payload.put(Server.KEY_USER_NAME, clientName);
             payload.put(Server.KEY_ROOM_ID, String.valueOf(roomId));
             payload.put(Server.KEY_TYPE, Server.METHOD_NEW_USER);
-            writer.write(payload.toString());
-            writer.newLine();
-            writer.flush();
+            if (compression) payload.put(Server.KEY_COMPRESSION, Codec.COMPRESSION_DEFLATE);
+            if (resumeToken != null) payload.put(Server.KEY_TOKEN, resumeToken);
+            synchronized (writer) {
+                Codec.write(writer, payload, format);
+                writer.flush();
+            }
         } catch (Exception e) {
             System.out.println("Error sending name to server");
         }
@@ -223,8 +329,7 @@ public class Client {
             //send req to the server to create a room
             Map<String, String> payload = new HashMap<>();
             payload.put(Server.KEY_TYPE, Server.METHOD_CREATE_ROOM);
-            writer.write(payload.toString());
-            writer.newLine();
+            Codec.write(writer, payload, format);
             writer.flush();
         } catch (Exception e) {
             System.out.println("Error sending request to create room");
@@ -245,28 +350,37 @@ public class Client {
             Map<String, String> payload = new HashMap<>();
             payload.put(Server.KEY_TYPE, Server.METHOD_JOIN_ROOM);
             payload.put(Server.KEY_ROOM_ID, roomId);
-            writer.write(payload.toString());
-            writer.newLine();
+            Codec.write(writer, payload, format);
             writer.flush();
         } catch (Exception e) {
             System.out.println("Error sending request to join room");
         }
     }
 
+    /**
+     * Method to open the connection to the server
+     */
+    private static void connect() throws IOException {
+        Socket socket = new Socket("localhost", Integer.getInteger(Server.PROPERTY_PORT, 8080));
+        Client.reader = new MessageReader(socket.getInputStream());
+        Client.writer = new BufferedOutputStream(socket.getOutputStream());
+        Client.socket = socket;
+    }
+
+
     /**
      * Main method to start the client
      */
     public static void main(String[] args) {
-        Socket socket;
         try {
             //connect to the server
-            socket = new Socket("localhost", 8080);
+            connect();
             System.out.println("Connected to server");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            Client.socket = socket;
-            Client.reader = reader;
-            Client.writer = writer;
+
+            //"java Client binary" talks the length prefixed binary format
+            if (args.length > 0 && args[0].equals("binary")) {
+                format = Codec.Format.BINARY;
+            }
 
             //start listening to the server
             listenFromServer();
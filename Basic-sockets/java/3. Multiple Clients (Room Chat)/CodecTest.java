@@ -0,0 +1,280 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+
+/**
+ * Checks the wire formats of {@link Codec}, in-place parsing with {@link Message} and reading
+ * a stream of mixed frames with {@link MessageReader} and the batches of {@link Frame}.
+ * <p>
+ * Run with {@code java CodecTest}, exits with status 1 if any check fails.
+ */
+public class CodecTest {
+    private static int failures;
+
+
+    public static void main(String[] args) {
+        run("text round trip", CodecTest::textRoundTrip);
+        run("binary round trip", CodecTest::binaryRoundTrip);
+        run("binary inline keys and unknown type", CodecTest::binaryInlineKeys);
+        run("frame length of partial frames", CodecTest::partialFrames);
+        run("unknown first byte", CodecTest::unknownFrame);
+        run("compress and inflate", CodecTest::compression);
+        run("corrupt compressed frame", CodecTest::corruptCompression);
+        run("message parse in place", CodecTest::messageParse);
+        run("reader of mixed frames", CodecTest::mixedStream);
+        run("reader of the largest frame", CodecTest::largestFrame);
+        run("batch of frames", CodecTest::batch);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+
+    private static void textRoundTrip() throws Exception {
+        Map<String, String> map = chat("hello everyone");
+        byte[] frame = Codec.encode(map, Codec.Format.TEXT);
+
+        check(frame[frame.length - 1] == '\n', "text frame ends with a newline");
+        check(Codec.formatOf(frame[0]) == Codec.Format.TEXT, "text frame is told apart by its first byte");
+        check(Codec.frameLength(frame, 0, frame.length) == frame.length, "text frame length");
+        check(map.equals(Codec.decode(frame, 0, frame.length)), "decoded text frame");
+        check(map.equals(Codec.read(new ByteArrayInputStream(frame))), "text frame read from a stream");
+    }
+
+
+    private static void binaryRoundTrip() throws Exception {
+        Map<String, String> map = chat("gr\u00fc\u00dfe, \ud83c\udf0d = world");
+        byte[] frame = Codec.encode(map, Codec.Format.BINARY);
+
+        check(Codec.formatOf(frame[0]) == Codec.Format.BINARY, "binary frame is told apart by its first byte");
+        check(Codec.frameLength(frame, 0, frame.length) == frame.length, "binary frame length");
+        check(map.equals(Codec.decode(frame, 0, frame.length)), "decoded binary frame");
+        check(map.equals(Codec.read(new ByteArrayInputStream(frame))), "binary frame read from a stream");
+
+        //a frame in the middle of a buffer
+        byte[] padded = new byte[frame.length + 7];
+        System.arraycopy(frame, 0, padded, 3, frame.length);
+        check(map.equals(Codec.decode(padded, 3, frame.length)), "binary frame decoded at an offset");
+    }
+
+
+    private static void binaryInlineKeys() throws Exception {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, "not a known type");
+        map.put("custom key", "custom value");
+        map.put(Server.KEY_MESSAGE, "");
+        byte[] frame = Codec.encode(map, Codec.Format.BINARY);
+
+        check(map.equals(Codec.decode(frame, 0, frame.length)), "keys and types outside the tables survive");
+    }
+
+
+    private static void partialFrames() throws Exception {
+        for (Codec.Format format : Codec.Format.values()) {
+            byte[] frame = Codec.encode(chat("partial"), format);
+            for (int available = 0; available < frame.length; available++) {
+                check(Codec.frameLength(frame, 0, available) == -1, format + " frame incomplete at " + available + " bytes");
+            }
+
+            //two frames back to back, the first one is found alone
+            byte[] two = Arrays.copyOf(frame, frame.length * 2);
+            System.arraycopy(frame, 0, two, frame.length, frame.length);
+            check(Codec.frameLength(two, 0, two.length) == frame.length, format + " first of two frames");
+            check(Codec.frameLength(two, frame.length, frame.length) == frame.length, format + " second of two frames");
+        }
+
+        byte[] cut = Arrays.copyOf(Codec.encode(chat("cut"), Codec.Format.BINARY), 10);
+        try {
+            Codec.read(new ByteArrayInputStream(cut));
+            check(false, "a frame cut short fails");
+        } catch (EOFException expected) {
+            //the stream ended inside the frame
+        }
+    }
+
+
+    private static void unknownFrame() {
+        byte[] garbage = {'x', 'y', 'z', '\n'};
+        try {
+            Codec.frameLength(garbage, 0, garbage.length);
+            check(false, "a frame starting with an unknown byte fails");
+        } catch (IOException expected) {
+            //neither a text line nor a length prefix
+        }
+    }
+
+
+    private static void compression() throws Exception {
+        String text = "the same words over and over again".repeat(100);
+        Inflater inflater = new Inflater();
+        try {
+            for (Codec.Format format : Codec.Format.values()) {
+                Map<String, String> map = chat(text);
+                byte[] frame = Codec.encode(map, format);
+                byte[] compressed = Codec.compress(frame);
+
+                check(compressed[0] == Codec.COMPRESSED, format + " compressed frame is marked");
+                check(compressed.length < frame.length, format + " compressed frame is smaller");
+                check(Codec.frameLength(compressed, 0, compressed.length) == compressed.length, format + " compressed frame length");
+                check(Arrays.equals(frame, Codec.inflate(compressed, 0, compressed.length, inflater)), format + " inflated frame");
+                check(map.equals(Codec.decode(compressed, 0, compressed.length)), format + " decoded compressed frame");
+                check(map.equals(Codec.read(new ByteArrayInputStream(compressed))), format + " compressed frame read from a stream");
+            }
+
+            //nothing to gain, the frame is kept as it is
+            byte[] small = Codec.encode(chat("hi"), Codec.Format.BINARY);
+            check(Codec.compress(small) == small, "frame that does not shrink is not compressed");
+        } finally {
+            inflater.end();
+        }
+    }
+
+
+    private static void corruptCompression() throws Exception {
+        byte[] compressed = Codec.compress(Codec.encode(chat("abc ".repeat(200)), Codec.Format.BINARY));
+        compressed[compressed.length / 2] ^= 0x5a;
+        compressed[compressed.length / 2 + 1] ^= 0x5a;
+        try {
+            Codec.decode(compressed, 0, compressed.length);
+            check(false, "a corrupt compressed frame fails");
+        } catch (IOException expected) {
+            //deflate data or the frame inside it does not check out
+        }
+    }
+
+
+    private static void messageParse() throws Exception {
+        Map<String, String> map = chat("in place");
+        map.put("extra", "kept aside");
+        Message message = new Message();
+
+        for (Codec.Format format : Codec.Format.values()) {
+            byte[] frame = Codec.encode(map, format);
+            message.parse(frame, 0, frame.length);
+
+            check(message.is(Server.METHOD_SEND_MSG), format + " message type");
+            check(!message.is(Server.METHOD_PING), format + " message is not another type");
+            check("alice".equals(message.get(Server.KEY_USER_NAME)), format + " message value");
+            check(message.get(Server.KEY_TOKEN) == null, format + " missing value");
+            check(map.equals(message.toMap()), format + " message copied to a map");
+        }
+
+        byte[] compressed = Codec.compress(Codec.encode(chat("x".repeat(2000)), Codec.Format.TEXT));
+        try {
+            message.parse(compressed, 0, compressed.length);
+            check(false, "a compressed frame is not parsed in place");
+        } catch (IOException expected) {
+            //has to be inflated first
+        }
+    }
+
+
+    private static void mixedStream() throws Exception {
+        Map<String, String> first = chat("first");
+        Map<String, String> second = chat("second ".repeat(300));
+        Map<String, String> third = chat("third");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Codec.encode(first, Codec.Format.TEXT));
+        out.write(Codec.compress(Codec.encode(second, Codec.Format.BINARY)));
+        out.write(Codec.encode(third, Codec.Format.BINARY));
+
+        MessageReader reader = new MessageReader(new ByteArrayInputStream(out.toByteArray()));
+        check(first.equals(reader.next().toMap()), "text frame from the stream");
+        check(second.equals(reader.next().toMap()), "compressed frame from the stream");
+        check(third.equals(reader.next().toMap()), "binary frame from the stream");
+        try {
+            reader.next();
+            check(false, "the end of the stream is reported");
+        } catch (EOFException expected) {
+            //no more frames
+        }
+    }
+
+
+    private static void largestFrame() throws Exception {
+        //a text just short of the limit, then padded so the binary frame has the largest length allowed
+        String text = "x".repeat(Codec.MAX_FRAME_LENGTH - 100);
+        byte[] frame = Codec.encode(chat(text), Codec.Format.BINARY);
+        text += "x".repeat(Codec.MAX_FRAME_LENGTH + 4 - frame.length);
+        frame = Codec.encode(chat(text), Codec.Format.BINARY);
+        check(frame.length == Codec.MAX_FRAME_LENGTH + 4, "frame of the largest length");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame);
+        out.write(Codec.encode(chat("after"), Codec.Format.BINARY));
+
+        MessageReader reader = new MessageReader(new ByteArrayInputStream(out.toByteArray()));
+        check(text.equals(reader.next().get(Server.KEY_MESSAGE)), "frame of the largest length from the stream");
+        check("after".equals(reader.next().get(Server.KEY_MESSAGE)), "frame after the largest one");
+    }
+
+
+    private static void batch() throws Exception {
+        Map<String, String> first = chat("first");
+        Map<String, String> second = chat("second ".repeat(300));
+        Map<String, String> third = chat("third");
+        Frame one = Frame.of(first);
+        check(Frame.batch(List.of(one)) == one, "a batch of one frame is the frame");
+
+        Frame batch = Frame.batch(List.of(one, Frame.of(second), Frame.of(third)));
+        for (Codec.Format format : Codec.Format.values()) {
+            //with compression only the large frame is compressed, each part stays a frame of its own
+            for (int threshold : new int[]{0, Codec.DEFAULT_COMPRESS_THRESHOLD}) {
+                byte[] bytes = batch.bytes(format, threshold);
+                check(batch.length(format, threshold) == bytes.length, format + " batch length");
+
+                MessageReader reader = new MessageReader(new ByteArrayInputStream(bytes));
+                check(first.equals(reader.next().toMap()), format + " first frame of the batch");
+                check(second.equals(reader.next().toMap()), format + " second frame of the batch");
+                check(third.equals(reader.next().toMap()), format + " third frame of the batch");
+            }
+            check(batch.bytes(format, Codec.DEFAULT_COMPRESS_THRESHOLD).length < batch.bytes(format).length,
+                    format + " batch with a compressed part is smaller");
+        }
+    }
+
+
+    private static Map<String, String> chat(String text) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_USER_ID, "3f2a9c1e");
+        map.put(Server.KEY_USER_NAME, "alice");
+        map.put(Server.KEY_MESSAGE, text);
+        return map;
+    }
+
+
+    // Body of one check
+    interface Check {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Method to run one check and report whether it passed
+     */
+    private static void run(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Measures the bandwidth compression saves against the CPU it costs, for typical chat payloads.
+ * <p>
+ * A broadcast compresses its frame once and every recipient inflates it, so the table shows the
+ * bytes saved per recipient next to the one-off compression time and the inflation time each
+ * recipient pays. The fastest deflate level is compared with the default and the best one.
+ * Run with {@code java CompressionBenchmark}.
+ */
+public class CompressionBenchmark {
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 10_000;
+
+    //keeps results alive so the JIT cannot drop the work
+    static int sink;
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> payloads = new HashMap<>();
+        payloads.put("chat line", "did anyone see the deploy go out?");
+        payloads.put("log paste", logPaste());
+        payloads.put("stack trace", stackTrace());
+
+        System.out.printf("%-12s %-7s %5s %8s %8s %7s %12s %12s%n",
+                "payload", "format", "level", "bytes", "sent", "saved", "deflate us", "inflate us");
+        for (String name : new String[]{"chat line", "log paste", "stack trace"}) {
+            Map<String, String> map = new HashMap<>();
+            map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+            map.put(Server.KEY_USER_NAME, "alice");
+            map.put(Server.KEY_MESSAGE, payloads.get(name));
+
+            for (Codec.Format format : Codec.Format.values()) {
+                byte[] frame = Codec.encode(map, format);
+                for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION}) {
+                    report(name, format, level, frame);
+                }
+            }
+        }
+        System.out.println("threshold " + Codec.DEFAULT_COMPRESS_THRESHOLD + " bytes, the servers use level " + Deflater.BEST_SPEED);
+    }
+
+
+    /**
+     * Method to print the compressed size and the time to deflate and inflate a frame
+     */
+    private static void report(String name, Codec.Format format, int level, byte[] frame) throws Exception {
+        byte[] compressed = compress(frame, level);
+        Inflater inflater = new Inflater();
+
+        for (int i = 0; i < WARMUP; i++) {
+            sink += compress(frame, level).length;
+            sink += Codec.inflate(compressed, 0, compressed.length, inflater).length;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += compress(frame, level).length;
+        }
+        long deflateNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += Codec.inflate(compressed, 0, compressed.length, inflater).length;
+        }
+        long inflateNanos = (System.nanoTime() - start) / ITERATIONS;
+        inflater.end();
+
+        //frames that do not shrink are sent as they are
+        int sent = Math.min(frame.length, compressed.length);
+        System.out.printf("%-12s %-7s %5d %8d %8d %6.1f%% %12.1f %12.1f%n", name, format, level, frame.length, sent,
+                100.0 * (frame.length - sent) / frame.length, deflateNanos / 1e3, inflateNanos / 1e3);
+    }
+
+
+    /**
+     * Method to compress a frame like {@link Codec#compress} does, at any level
+     */
+    private static byte[] compress(byte[] frame, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(frame);
+            deflater.finish();
+            byte[] out = new byte[frame.length + 64];
+            int size = 4;
+            while (!deflater.finished()) {
+                if (size == out.length) out = Arrays.copyOf(out, out.length * 2);
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            int length = size - 4;
+            out[0] = Codec.COMPRESSED;
+            out[1] = (byte) (length >>> 16);
+            out[2] = (byte) (length >>> 8);
+            out[3] = (byte) length;
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    private static String logPaste() {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            log.append(String.format("2026-10-17 12:%02d:%02d.%03d INFO  [worker-%d] c.e.orders.OrderService - order %d accepted for customer %d in %d ms | ",
+                    i / 60, i % 60, (i * 37) % 1000, i % 8, 100_000 + i * 7, 5_000 + (i * 13) % 97, 3 + (i * 11) % 40));
+        }
+        return log.toString();
+    }
+
+
+    private static String stackTrace() {
+        StringBuilder trace = new StringBuilder("java.lang.IllegalStateException: connection pool exhausted | ");
+        String[] frames = {
+                "com.example.db.Pool.acquire(Pool.java:212)",
+                "com.example.db.Repository.query(Repository.java:88)",
+                "com.example.orders.OrderService.load(OrderService.java:141)",
+                "com.example.orders.OrderController.get(OrderController.java:57)",
+                "jdk.internal.reflect.DirectMethodHandleAccessor.invoke(DirectMethodHandleAccessor.java:103)",
+                "java.lang.reflect.Method.invoke(Method.java:580)",
+                "org.framework.web.Dispatcher.dispatch(Dispatcher.java:1040)",
+                "org.framework.web.Servlet.service(Servlet.java:590)",
+                "java.lang.Thread.run(Thread.java:1583)",
+        };
+        for (int i = 0; i < 4; i++) {
+            for (String frame : frames) trace.append("    at ").append(frame).append(" | ");
+            trace.append("Caused by: java.net.SocketTimeoutException: Read timed out | ");
+        }
+        return trace.toString();
+    }
+}
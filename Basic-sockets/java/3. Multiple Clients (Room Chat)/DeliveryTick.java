@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery tick of a room, packing the messages of a busy room into one write per member.
+ * <p>
+ * A quiet room sends every message right away. Once the messages of a room within a second reach
+ * the threshold the room turns busy, and its messages are collected and sent once per tick instead,
+ * every member getting all the messages of the tick as one batch. The room stays busy for as long
+ * as every second reaches the threshold. A member is not sent its own messages, so the batch is only
+ * packed again for the members that sent something during the tick.
+ * <p>
+ * The tick timer only hands the end of a tick over, to the loop of the room or without room loops
+ * to a tick thread, so one room's batch never holds up the ticks of the others. With room loops
+ * everything else runs on the loop of the room too and needs no lock.
+ * <p>
+ * Configured with e.g. {@code -Dchat.room.tick.millis=20} and {@code -Dchat.room.tick.threshold=50},
+ * without a tick every message is sent right away.
+ */
+public class DeliveryTick {
+
+    //settings read by the server, 0 millis sends every message right away
+    public static final String PROPERTY_MILLIS = "chat.room.tick.millis";
+    public static final String PROPERTY_THRESHOLD = "chat.room.tick.threshold";
+    public static final long DEFAULT_MILLIS = 0;
+    public static final int DEFAULT_THRESHOLD = 50;
+
+    //the messages of a room are counted per second
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Server server;
+    private final Server.Room room;
+
+    //messages waiting for the end of the tick and who sent each of them
+    private final List<Frame> frames = new ArrayList<>();
+    private final List<String> senders = new ArrayList<>();
+
+    //set while a batch is sent outside the lock, messages coming meanwhile wait for the next tick, without room loops only
+    private boolean flushing;
+
+    //messages being sent right away outside the lock, a tick ending meanwhile waits for the next one, without room loops only
+    private int sending;
+
+    //messages of the current second and whether the room is busy
+    private long windowStart = System.nanoTime();
+    private int windowCount;
+    private boolean busy;
+
+    public DeliveryTick(Server server, Server.Room room) {
+        this.server = server;
+        this.room = room;
+    }
+
+
+    /**
+     * Method to send a message to the clients of the room, right away or with the others of the tick
+     *
+     * @param frame    frame to send
+     * @param senderId id of the sender, who does not get the frame
+     */
+    public void send(Frame frame, String senderId) {
+        //on the loop of the room, which also ends the ticks, nothing can run in between
+        if (server.loops != null) {
+            if (!queue(frame, senderId)) server.broadcastFrame(frame, senderId, room.clients);
+            return;
+        }
+
+        synchronized (this) {
+            if (queue(frame, senderId)) return;
+            sending++;
+        }
+
+        //only the decision is taken under the lock, the other senders of the room do not wait for the fan-out
+        try {
+            server.broadcastFrame(frame, senderId, room.clients);
+        } finally {
+            synchronized (this) {
+                sending--;
+            }
+        }
+    }
+
+
+    /**
+     * Method to add a message to the tick if the room has to wait for it
+     *
+     * @return true if the message was added, false if it goes out right away
+     */
+    private boolean queue(Frame frame, String senderId) {
+        count(System.nanoTime());
+
+        //a busy room waits for the tick, and so does a quiet one while messages of the last tick are still ahead
+        if (busy || !frames.isEmpty() || flushing) {
+            //the first message of a tick starts it
+            if (frames.isEmpty()) schedule();
+            frames.add(frame);
+            senders.add(senderId);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Method to end the tick after its length
+     */
+    private void schedule() {
+        server.tickTimers.schedule(this::handOver, server.tickMillis);
+    }
+
+
+    /**
+     * Method to hand the end of the tick over to the loop of the room or a tick thread, runs on the
+     * timer thread which never waits
+     */
+    private void handOver() {
+        if (server.loops == null) {
+            server.tickFlushes.execute(this::flush);
+        } else if (!server.loops.offer(room.id, this::flush)) {
+            //the loop is full, its messages wait one more tick
+            schedule();
+        }
+    }
+
+
+    /**
+     * Method to count a message and decide whether the room is busy
+     */
+    private void count(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            //the second that ended decides, a room that went silent for longer cools down
+            busy = elapsed < 2 * WINDOW_NANOS && windowCount >= server.tickThreshold;
+            windowStart = now;
+            windowCount = 0;
+        }
+        if (++windowCount >= server.tickThreshold) busy = true;
+    }
+
+
+    /**
+     * Method to send the messages of the tick to every member in one frame
+     */
+    private void flush() {
+        //take the messages of the tick, the senders of the next one only wait for that and not for the fan-out
+        List<Frame> tickFrames;
+        List<String> tickSenders;
+        synchronized (this) {
+            if (frames.isEmpty()) return;
+
+            //a message sent right away before the tick is still going out, the tick must not overtake it
+            if (sending > 0) {
+                schedule();
+                return;
+            }
+            tickFrames = new ArrayList<>(frames);
+            tickSenders = new ArrayList<>(senders);
+            frames.clear();
+            senders.clear();
+            flushing = true;
+        }
+
+        Frame batch = Frame.batch(tickFrames);
+        Set<String> sent = new HashSet<>(tickSenders);
+        int recipients = 0;
+        for (Server.Client client : room.clients) {
+            Frame frame = batch;
+
+            //a member that sent messages in this tick gets the others only
+            if (sent.contains(client.clientId)) {
+                frame = without(tickFrames, tickSenders, client.clientId);
+                if (frame == null) continue;
+            }
+
+            try {
+                server.sendFrame(client, frame);
+                recipients++;
+            } catch (Exception e) {
+                System.out.println("Error broadcasting message");
+            }
+        }
+
+        //the batch is as old as its first message
+        server.stats.broadcast(recipients, System.nanoTime() - batch.created());
+
+        synchronized (this) {
+            flushing = false;
+        }
+    }
+
+
+    /**
+     * Method to pack the messages of the tick a client did not send itself
+     *
+     * @return batch of the others' messages, null if all of them came from the client
+     */
+    private static Frame without(List<Frame> frames, List<String> senders, String clientId) {
+        List<Frame> others = new ArrayList<>(frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            if (!clientId.equals(senders.get(i))) others.add(frames.get(i));
+        }
+        return others.isEmpty() ? null : Frame.batch(others);
+    }
+}
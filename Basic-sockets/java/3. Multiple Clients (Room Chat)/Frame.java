@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message already encoded to the bytes that go over the socket.
+ * <p>
+ * A frame never changes once created, so a broadcast encodes its message a single time
+ * and writes the very same bytes to every recipient. Each {@link Codec.Format} is encoded
+ * the first time a recipient speaking it needs the frame, and compressed the first time a
+ * recipient that agreed on compression needs it.
+ * <p>
+ * A frame can also be a batch of other frames, sent back to back in one write. Each of them is
+ * encoded and compressed on its own, so a reader still sees the complete frames one by one.
+ */
+public final class Frame {
+    private final Map<String, String> message;
+
+    //frames of a batch in the order they are sent, null for frames created from a message
+    private final Frame[] parts;
+
+    //System.nanoTime() at creation, for measuring how long the frame took to reach the sockets
+    private final long created;
+    private final boolean timed;
+
+    //encodings by format, racing threads at worst encode the same bytes twice
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    //compressed encodings, shared by all the recipients that agreed on compression
+    private volatile byte[] compressedText;
+    private volatile byte[] compressedBinary;
+
+    private Frame(Map<String, String> message, boolean timed) {
+        this.message = message;
+        this.parts = null;
+        this.timed = timed;
+        this.created = timed ? System.nanoTime() : 0;
+    }
+
+    private Frame(Frame[] parts) {
+        this.message = null;
+        this.parts = parts;
+        this.timed = true;
+
+        //a batch is as old as its oldest frame, the time it waited for the batch counts as delivery time
+        long oldest = System.nanoTime();
+        for (Frame part : parts) {
+            if (part.timed && part.created - oldest < 0) oldest = part.created;
+        }
+        this.created = oldest;
+    }
+
+
+    /**
+     * Method to create a frame for a message, the map must not be changed afterwards
+     *
+     * @param map message of the frame
+     * @return frame for the message
+     */
+    public static Frame of(Map<String, String> map) {
+        return new Frame(map, true);
+    }
+
+
+    /**
+     * Method to create a frame that is kept and sent again and again, such as a ping
+     * <p>
+     * Its age says nothing about queueing, so it is left out of the delivery latency.
+     *
+     * @param map message of the frame
+     * @return frame for the message
+     */
+    public static Frame constant(Map<String, String> map) {
+        return new Frame(map, false);
+    }
+
+
+    /**
+     * Method to create a frame sending several frames in one write
+     *
+     * @param frames frames in the order they are sent, copied
+     * @return frame for all of them, the frame itself if there is only one
+     */
+    public static Frame batch(List<Frame> frames) {
+        if (frames.size() == 1) return frames.get(0);
+        return new Frame(frames.toArray(new Frame[0]));
+    }
+
+
+    /**
+     * Method to tell whether the time the frame was created is measured
+     *
+     * @return false for constant frames
+     */
+    public boolean timed() {
+        return timed;
+    }
+
+
+    /**
+     * Method to get the time the frame was created
+     *
+     * @return System.nanoTime() at creation
+     */
+    public long created() {
+        return created;
+    }
+
+
+    /**
+     * Method to get the encoded bytes of the frame
+     *
+     * @param format wire format of the recipient
+     * @return encoded frame, must not be modified
+     */
+    public byte[] bytes(Codec.Format format) {
+        if (format == Codec.Format.TEXT) {
+            byte[] bytes = text;
+            if (bytes == null) text = bytes = encode(format, 0);
+            return bytes;
+        }
+        byte[] bytes = binary;
+        if (bytes == null) binary = bytes = encode(format, 0);
+        return bytes;
+    }
+
+
+    /**
+     * Method to get the bytes sent to a recipient, compressed if the recipient takes compressed frames of that size
+     *
+     * @param format    wire format of the recipient
+     * @param threshold smallest frame compressed for the recipient, 0 if it does not take compressed frames
+     * @return encoded frame, must not be modified
+     */
+    public byte[] bytes(Codec.Format format, int threshold) {
+        if (threshold <= 0) return bytes(format);
+        if (parts == null) {
+            byte[] bytes = bytes(format);
+            if (bytes.length < threshold) return bytes;
+        }
+
+        if (format == Codec.Format.TEXT) {
+            byte[] compressed = compressedText;
+            if (compressed == null) compressedText = compressed = encode(format, threshold);
+            return compressed;
+        }
+        byte[] compressed = compressedBinary;
+        if (compressed == null) compressedBinary = compressed = encode(format, threshold);
+        return compressed;
+    }
+
+
+    /**
+     * Method to encode the message, or join the frames of a batch each compressed on its own
+     */
+    private byte[] encode(Codec.Format format, int threshold) {
+        if (parts == null) {
+            return threshold > 0 ? Codec.compress(bytes(format)) : Codec.encode(message, format);
+        }
+
+        int length = 0;
+        for (Frame part : parts) {
+            length += part.length(format, threshold);
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (Frame part : parts) {
+            byte[] encoded = part.bytes(format, threshold);
+            System.arraycopy(encoded, 0, bytes, offset, encoded.length);
+            offset += encoded.length;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Method to get the encoded size of the frame
+     *
+     * @param format wire format of the recipient
+     * @return number of bytes
+     */
+    public int length(Codec.Format format) {
+        return length(format, 0);
+    }
+
+
+    /**
+     * Method to get the size of the frame as sent to a recipient
+     *
+     * @param format    wire format of the recipient
+     * @param threshold smallest frame compressed for the recipient, 0 if it does not take compressed frames
+     * @return number of bytes
+     */
+    public int length(Codec.Format format, int threshold) {
+        return bytes(format, threshold).length;
+    }
+
+
+    /**
+     * Method to write the whole frame to a stream, the caller decides when to flush
+     *
+     * @param out    stream to write to
+     * @param format wire format of the recipient
+     */
+    public void writeTo(OutputStream out, Codec.Format format) throws IOException {
+        writeTo(out, format, 0);
+    }
+
+
+    /**
+     * Method to write the whole frame to a stream, compressed if the recipient takes compressed frames of its size
+     *
+     * @param out       stream to write to
+     * @param format    wire format of the recipient
+     * @param threshold smallest frame compressed for the recipient, 0 if it does not take compressed frames
+     */
+    public void writeTo(OutputStream out, Codec.Format format, int threshold) throws IOException {
+        out.write(bytes(format, threshold));
+    }
+
+
+    /**
+     * Method to copy as much of the frame as fits into a buffer
+     *
+     * @param target buffer to copy into
+     * @param offset first byte of the frame to copy
+     * @param format wire format of the recipient
+     * @return number of bytes copied
+     */
+    public int copyTo(ByteBuffer target, int offset, Codec.Format format) {
+        byte[] bytes = bytes(format);
+        int count = Math.min(target.remaining(), bytes.length - offset);
+        target.put(bytes, offset, count);
+        return count;
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the real {@link Client} against a {@link Server} in this process and checks the
+ * handshake: a new client creates a room, is asked for its name and joins it, and with
+ * resumption on, a client whose connection drops comes back as the same user in the same room
+ * without leaving it.
+ * <p>
+ * The client runs as a child process typed into through its standard input, and an observer
+ * connection in the room watches the chat. Run with {@code java HandshakeTest}, exits with status 1 if any
+ * check fails.
+ */
+public class HandshakeTest {
+
+    //how long to wait for the client or the observer
+    private static final long WAIT_MILLIS = 10_000;
+
+    private static int failures;
+
+
+    public static void main(String[] args) {
+        run("new client enters its name and joins", HandshakeTest::join);
+        run("dropped client resumes its session", HandshakeTest::resume);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+
+    private static void join() throws Exception {
+        Server server = startServer(0);
+        ChildClient client = null;
+        Observer observer = null;
+        try {
+            client = new ChildClient(server);
+            String roomId = client.createRoom("alice");
+            client.await("Entered in the chat room");
+
+            observer = new Observer(server, roomId);
+            client.type("hello");
+            observer.await("alice", "hello");
+            check(!client.saw("Resumed"), "a new client does not think it resumed");
+
+            //the end of the input stops the sender instead of failing over and over on it
+            client.endInput();
+            Thread.sleep(500);
+            check(!client.saw("Error sending message"), "the end of the input stops the sender");
+        } finally {
+            if (observer != null) observer.close();
+            if (client != null) client.stop();
+            server.serverSocket.close();
+        }
+    }
+
+
+    private static void resume() throws Exception {
+        Server server = startServer(5000);
+        ChildClient client = null;
+        Observer observer = null;
+        try {
+            client = new ChildClient(server);
+            String roomId = client.createRoom("alice");
+            client.await("Entered in the chat room");
+
+            observer = new Observer(server, roomId);
+            client.type("hello");
+            observer.await("alice", "hello");
+            Server.Client member = member(server, roomId, "alice");
+
+            //drop the connection on the server side, the client reconnects and presents its token
+            member.socket.close();
+            client.await("Server Disconnected");
+            client.await("Resumed room " + roomId);
+
+            client.type("back again");
+            observer.await("alice", "back again");
+            check(observer.count("alice", "left the chat") == 0, "a resumed client does not leave");
+            check(observer.count("alice", "joined the chat") == 0, "a resumed client does not join again");
+            check(member == member(server, roomId, "alice"), "a resumed client is the same member of the room");
+        } finally {
+            if (observer != null) observer.close();
+            if (client != null) client.stop();
+            server.serverSocket.close();
+        }
+    }
+
+
+    /**
+     * Method to find a client in a room by its name
+     */
+    private static Server.Client member(Server server, String roomId, String name) {
+        for (Server.Client client : server.rooms.get(Integer.parseInt(roomId)).clients) {
+            if (name.equals(client.clientName)) return client;
+        }
+        throw new AssertionError(name + " is not in room " + roomId);
+    }
+
+
+    /**
+     * Method to start a server on a free port
+     *
+     * @param graceMillis grace window of dropped sessions, 0 turns resumption off
+     */
+    private static Server startServer(long graceMillis) throws IOException {
+        System.setProperty(SessionStore.PROPERTY_GRACE_MILLIS, Long.toString(graceMillis));
+        Server server = new Server(new ServerSocket(0));
+        Thread thread = new Thread(server::startServer, "handshake-test-server");
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+
+    // Client process fed through its standard input, its output is collected line by line
+    static final class ChildClient {
+        final Process process;
+        final OutputStream in;
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final StringBuilder seen = new StringBuilder();
+
+        ChildClient(Server server) throws IOException {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "-D" + Server.PROPERTY_PORT + "=" + server.serverSocket.getLocalPort(), "Client")
+                    .redirectErrorStream(true)
+                    .start();
+            in = process.getOutputStream();
+
+            Thread reader = new Thread(() -> {
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) lines.add(line);
+                } catch (IOException e) {
+                    //the process is gone
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+
+        /**
+         * Method to pick create room in the menu and enter a name
+         *
+         * @return id of the created room
+         */
+        String createRoom(String name) throws IOException, InterruptedException {
+            await("3. Exit");
+            type("1");
+            String created = await("created");
+            await("Enter your name");
+            type(name);
+            return created.split(" ")[1];
+        }
+
+
+        /**
+         * Method to type a line into the client, it reads one line per prompt
+         */
+        void type(String line) throws IOException {
+            in.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            in.flush();
+        }
+
+
+        void endInput() throws IOException {
+            in.close();
+        }
+
+
+        /**
+         * Method to wait until the client prints a line containing the text
+         *
+         * @return the line
+         */
+        String await(String text) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+            while (true) {
+                String line = lines.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (line == null) throw new AssertionError("client did not print \"" + text + "\", printed: " + seen);
+                seen.append(line).append('\n');
+                if (line.contains(text)) return line;
+            }
+        }
+
+
+        boolean saw(String text) {
+            String line;
+            while ((line = lines.poll()) != null) seen.append(line).append('\n');
+            return seen.indexOf(text) >= 0;
+        }
+
+
+        void stop() throws InterruptedException {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+
+    // Connection that joins a room to watch what the other clients say
+    static final class Observer implements AutoCloseable {
+        final Socket socket;
+        final MessageReader reader;
+        final BufferedOutputStream writer;
+
+        //user name and message of every chat message received
+        final StringBuilder seen = new StringBuilder();
+
+        Observer(Server server, String roomId) throws IOException {
+            socket = new Socket("localhost", server.serverSocket.getLocalPort());
+            socket.setSoTimeout((int) WAIT_MILLIS);
+            reader = new MessageReader(socket.getInputStream());
+            writer = new BufferedOutputStream(socket.getOutputStream());
+
+            Message id = reader.next();
+            check(id.is(Server.METHOD_GET_ID), "the server starts with the id");
+            check(id.get(Server.KEY_USER_NAME) == null, "a new client has no name yet");
+            check(id.get(Server.KEY_RESUMED) == null, "a new client is not resumed");
+
+            Map<String, String> join = new HashMap<>();
+            join.put(Server.KEY_TYPE, Server.METHOD_JOIN_ROOM);
+            join.put(Server.KEY_ROOM_ID, roomId);
+            Codec.write(writer, join, Codec.Format.TEXT);
+            writer.flush();
+            check("success".equals(reader.next().get(Server.KEY_MESSAGE)), "the observer joins the room");
+
+            Map<String, String> map = new HashMap<>();
+            map.put(Server.KEY_TYPE, Server.METHOD_NEW_USER);
+            map.put(Server.KEY_USER_ID, id.get(Server.KEY_USER_ID));
+            map.put(Server.KEY_USER_NAME, "observer");
+            map.put(Server.KEY_ROOM_ID, roomId);
+            Codec.write(writer, map, Codec.Format.TEXT);
+            writer.flush();
+        }
+
+
+        /**
+         * Method to read chat messages until the user says the text
+         */
+        void await(String userName, String text) throws IOException {
+            String wanted = userName + ": " + text + "\n";
+            while (seen.indexOf(wanted) < 0) {
+                Message message = reader.next();
+                if (message.is(Server.METHOD_SEND_MSG)) {
+                    seen.append(message.get(Server.KEY_USER_NAME)).append(": ").append(message.get(Server.KEY_MESSAGE)).append('\n');
+                }
+            }
+        }
+
+
+        int count(String userName, String text) {
+            String wanted = userName + ": " + text + "\n";
+            int count = 0;
+            for (int i = seen.indexOf(wanted); i >= 0; i = seen.indexOf(wanted, i + 1)) count++;
+            return count;
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+
+    // Body of one check
+    interface Check {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Method to run one check and report whether it passed
+     */
+    private static void run(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable view of one received message.
+ * <p>
+ * Parsing a frame does not allocate: the type is matched to a code from {@link Codec#TYPES},
+ * keys are matched byte by byte against {@link Codec#KEYS} and values are remembered as
+ * ranges of the receive buffer. A value only becomes a String when {@link #get} asks for it.
+ * The same object is filled again by the next frame, so handlers must not keep it.
+ */
+public final class Message {
+    private static final byte[][] TYPE_BYTES = utf8(Codec.TYPES);
+    private static final byte[][] KEY_BYTES = utf8(Codec.KEYS);
+    private static final int KEY_TYPE_CODE = Codec.indexOf(Codec.KEYS, Server.KEY_TYPE);
+
+    //format and size of the frame this message was parsed from
+    Codec.Format format;
+    int length;
+
+    //buffer the value ranges point into
+    private byte[] data;
+
+    //code of the message type, 0 if the type is missing or not in the table
+    private int type;
+
+    //value range of every known key, start is -1 when the key is absent
+    private final int[] starts = new int[Codec.KEYS.length];
+    private final int[] ends = new int[Codec.KEYS.length];
+
+    //keys that are not in the table, only created when a frame has one
+    private Map<String, String> extra;
+
+
+    /**
+     * Method to fill this message from one complete frame of either format
+     *
+     * @param data   buffer holding the frame, must not change while the message is used
+     * @param offset start of the frame
+     * @param length size of the frame as returned by {@link Codec#frameLength}
+     * @throws IOException for a compressed frame, which has to be inflated first
+     */
+    public void parse(byte[] data, int offset, int length) throws IOException {
+        if (data[offset] == Codec.COMPRESSED) throw new IOException("Compressed frame");
+        this.data = data;
+        this.length = length;
+        this.type = 0;
+        this.extra = null;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = -1;
+        }
+
+        format = Codec.formatOf(data[offset]);
+        if (format == Codec.Format.BINARY) {
+            parseBinary(offset + 4, offset + length);
+        } else {
+            parseText(offset, offset + length);
+        }
+    }
+
+
+    /**
+     * Method to check the type of the message without creating a String
+     *
+     * @param method one of the METHOD_* constants
+     * @return true if the message has that type
+     */
+    public boolean is(String method) {
+        if (type != 0) return Codec.TYPES[type].equals(method);
+        return method.equals(get(Server.KEY_TYPE));
+    }
+
+
+    /**
+     * Method to get a value of the message
+     *
+     * @param key one of the KEY_* constants
+     * @return the value or null if the message does not have it
+     */
+    public String get(String key) {
+        int code = Codec.indexOf(Codec.KEYS, key);
+        if (code == KEY_TYPE_CODE && type != 0) {
+            return Codec.TYPES[type];
+        }
+        if (code == 0) {
+            return extra == null ? null : extra.get(key);
+        }
+        if (starts[code] < 0) return null;
+        return new String(data, starts[code], ends[code] - starts[code], StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Method to copy the message into a map, e.g. to keep it after the next frame is parsed
+     *
+     * @return map with every value of the message
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<>();
+        if (extra != null) map.putAll(extra);
+        for (int code = 1; code < Codec.KEYS.length; code++) {
+            String value = get(Codec.KEYS[code]);
+            if (value != null) map.put(Codec.KEYS[code], value);
+        }
+        return map;
+    }
+
+
+    /**
+     * Method to tokenize a {@code {key=value, key=value}} line in a single pass
+     * <p>
+     * A ", " only ends a value when a known key and '=' follow it, so values may contain
+     * both ", " and '=' as long as they do not look like the start of another field.
+     */
+    private void parseText(int from, int to) throws IOException {
+        //strip the newline, an optional carriage return and the braces
+        int end = to - 1;
+        if (end > from && data[end - 1] == '\r') end--;
+        if (data[from] != '{' || data[end - 1] != '}') throw new IOException("Bad frame");
+        int position = from + 1;
+        end--;
+
+        while (position < end) {
+            int equals = indexOf((byte) '=', position, end);
+            if (equals < 0) throw new IOException("Bad frame");
+
+            int code = match(KEY_BYTES, position, equals);
+            int valueStart = equals + 1;
+            int valueEnd = nextSeparator(valueStart, end);
+
+            if (code == 0) {
+                extra().put(string(position, equals), string(valueStart, valueEnd));
+            } else if (code == KEY_TYPE_CODE && (type = match(TYPE_BYTES, valueStart, valueEnd)) != 0) {
+                //known type, kept as a code
+            } else {
+                starts[code] = valueStart;
+                ends[code] = valueEnd;
+            }
+            position = valueEnd + 2;
+        }
+    }
+
+
+    /**
+     * Method to read the type byte and the tagged fields of a binary frame body
+     */
+    private void parseBinary(int from, int to) throws IOException {
+        if (from >= to) throw new IOException("Bad frame");
+        type = data[from] & 0xff;
+        if (type >= TYPE_BYTES.length) type = 0;
+
+        int position = from + 1;
+        while (position < to) {
+            int tag = data[position++] & 0xff;
+
+            //inline key of a field not in the table
+            int keyStart = 0;
+            int keyEnd = 0;
+            if (tag == Codec.TAG_INLINE_KEY) {
+                int size = readVarint(position, to);
+                keyStart = skipVarint(position);
+                keyEnd = keyStart + size;
+                position = keyEnd;
+            }
+
+            int size = readVarint(position, to);
+            int valueStart = skipVarint(position);
+            int valueEnd = valueStart + size;
+            if (valueEnd > to) throw new IOException("Bad frame");
+
+            if (tag == Codec.TAG_INLINE_KEY) {
+                extra().put(string(keyStart, keyEnd), string(valueStart, valueEnd));
+            } else if (tag < KEY_BYTES.length) {
+                starts[tag] = valueStart;
+                ends[tag] = valueEnd;
+            }
+            position = valueEnd;
+        }
+    }
+
+
+    /**
+     * Method to find the ", " ending the value that starts at from
+     *
+     * @return end of the value
+     */
+    private int nextSeparator(int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if (data[i] != ',' || data[i + 1] != ' ') continue;
+
+            int equals = indexOf((byte) '=', i + 2, to);
+            if (equals > 0 && match(KEY_BYTES, i + 2, equals) != 0) return i;
+        }
+        return to;
+    }
+
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Method to find which entry of a table the bytes in [from, to) spell
+     *
+     * @return index in the table, 0 if none matches
+     */
+    private int match(byte[][] table, int from, int to) {
+        int length = to - from;
+        outer:
+        for (int i = 1; i < table.length; i++) {
+            byte[] candidate = table[i];
+            if (candidate.length != length) continue;
+            for (int j = 0; j < length; j++) {
+                if (candidate[j] != data[from + j]) continue outer;
+            }
+            return i;
+        }
+        return 0;
+    }
+
+
+    private int readVarint(int position, int to) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position >= to || shift > 28) throw new IOException("Bad frame");
+            b = data[position++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (value < 0) throw new IOException("Bad frame");
+        return value;
+    }
+
+
+    private int skipVarint(int position) {
+        while ((data[position] & 0x80) != 0) position++;
+        return position + 1;
+    }
+
+
+    private String string(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+
+    private Map<String, String> extra() {
+        if (extra == null) extra = new HashMap<>();
+        return extra;
+    }
+
+
+    private static byte[][] utf8(String[] table) {
+        byte[][] bytes = new byte[table.length][];
+        for (int i = 1; i < table.length; i++) {
+            bytes[i] = table[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of frames waiting to be written to one client, drained by its own writer thread.
+ * <p>
+ * Senders only enqueue, so a client whose socket buffer is full delays nobody but itself.
+ * What happens when its queue is full is decided by the {@link OverflowPolicy}.
+ * <p>
+ * With coalescing enabled the writer keeps adding queued frames to the same buffered write
+ * until the batch reaches a size limit, or until no frame arrived within a short window, and
+ * only then flushes. A burst then costs one socket write per batch instead of one per frame.
+ * <p>
+ * A queue can be detached from a dropped connection and attached to the next one of the same
+ * client, frames queued meanwhile are then written to the new connection in their order.
+ */
+public class OutboundQueue implements Runnable {
+
+    // What to do with a frame for a client whose queue is full
+    public enum OverflowPolicy {
+        //discard the oldest queued frame to make room
+        DROP_OLDEST,
+        //close the connection of the slow client
+        DISCONNECT,
+        //make the sender wait until there is room
+        BLOCK;
+
+        /**
+         * Method to parse a policy name such as "drop-oldest"
+         *
+         * @param name name of the policy
+         * @return matching policy
+         */
+        public static OverflowPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    //settings read by the servers, e.g. -Dchat.queue.capacity=256 -Dchat.queue.policy=block
+    public static final String PROPERTY_CAPACITY = "chat.queue.capacity";
+    public static final String PROPERTY_POLICY = "chat.queue.policy";
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.DISCONNECT;
+
+    //coalescing settings, e.g. -Dchat.coalesce.bytes=16384 -Dchat.coalesce.micros=500, off by default
+    public static final String PROPERTY_COALESCE_BYTES = "chat.coalesce.bytes";
+    public static final String PROPERTY_COALESCE_MICROS = "chat.coalesce.micros";
+
+    private final ArrayBlockingQueue<Frame> frames;
+    private final OverflowPolicy policy;
+    private volatile Socket socket;
+    private volatile OutputStream out;
+
+    //flush once a batch has this many bytes, 0 flushes after every frame
+    private final int coalesceBytes;
+
+    //how long to wait for another frame before flushing a smaller batch
+    private final long coalesceNanos;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    //true while the client is away, frames are kept but nothing is written
+    private final AtomicBoolean detached = new AtomicBoolean();
+
+    //set once the client was found too slow, so it is reported and closed only once
+    private final AtomicBoolean tooSlow = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread writer;
+
+    //written only by the writer thread
+    private volatile long framesWritten;
+    private volatile long flushes;
+
+    //counts written frames and their delivery latency, may be null
+    private final Stats stats;
+
+    //frames and sizes of the batch being written, timed once the batch is flushed
+    private Frame[] batchFrames = new Frame[16];
+    private int[] batchBytes = new int[16];
+    private int batchCount;
+
+    //format the client last spoke, frames are written in the same format
+    private volatile Codec.Format format = Codec.Format.TEXT;
+
+    //smallest frame written compressed, 0 until the client agrees on compression
+    private volatile int compressThreshold;
+
+    public OutboundQueue(Socket socket, OutputStream out, int capacity, OverflowPolicy policy) {
+        this(socket, out, capacity, policy, 0, 0);
+    }
+
+    public OutboundQueue(Socket socket, OutputStream out, int capacity, OverflowPolicy policy,
+                         int coalesceBytes, long coalesceMicros) {
+        this(socket, out, capacity, policy, coalesceBytes, coalesceMicros, null);
+    }
+
+    public OutboundQueue(Socket socket, OutputStream out, int capacity, OverflowPolicy policy,
+                         int coalesceBytes, long coalesceMicros, Stats stats) {
+        this.stats = stats;
+        this.frames = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.socket = socket;
+        this.out = out;
+        this.coalesceBytes = coalesceBytes;
+        this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(coalesceMicros);
+    }
+
+
+    /**
+     * Method to queue a frame for the writer thread
+     *
+     * @param frame frame to send
+     */
+    public void offer(Frame frame) {
+        if (closed.get()) return;
+        if (frames.offer(frame)) return;
+
+        //queue is full, the client is not keeping up, or is away and only the latest frames are kept
+        switch (detached.get() ? OverflowPolicy.DROP_OLDEST : policy) {
+            case DROP_OLDEST:
+                do {
+                    if (frames.poll() != null) dropped.incrementAndGet();
+                } while (!frames.offer(frame) && !closed.get());
+                break;
+            case DISCONNECT:
+                //closing the socket makes the reader thread of the client disconnect it
+                dropped.incrementAndGet();
+                if (tooSlow.compareAndSet(false, true)) {
+                    System.out.println("Client too slow, disconnecting");
+                    closeSocket(socket);
+                }
+                break;
+            case BLOCK:
+                try {
+                    while (!frames.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+                        if (closed.get()) return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+        }
+    }
+
+
+    /**
+     * Method to queue a frame only if there is room right now, whatever the policy
+     * <p>
+     * For frames a client may miss, sent from threads that must never wait for one client.
+     *
+     * @param frame frame to send
+     * @return true if the frame was queued
+     */
+    public boolean tryOffer(Frame frame) {
+        return !closed.get() && frames.offer(frame);
+    }
+
+
+    /**
+     * Method to set the wire format frames are written in from now on
+     *
+     * @param format format the client speaks
+     */
+    public void setFormat(Codec.Format format) {
+        this.format = format;
+    }
+
+
+    /**
+     * Method to compress frames from now on, once the client agreed on compression
+     *
+     * @param threshold smallest frame compressed, 0 turns compression off
+     */
+    public void setCompression(int threshold) {
+        this.compressThreshold = threshold;
+    }
+
+
+    /**
+     * Method to get the wire format frames are currently written in
+     *
+     * @return format the client speaks
+     */
+    public Codec.Format format() {
+        return format;
+    }
+
+
+    /**
+     * Method to get the number of frames waiting to be written
+     *
+     * @return queue depth
+     */
+    public int depth() {
+        return frames.size();
+    }
+
+
+    /**
+     * Method to tell whether a frame is still waiting to be written
+     *
+     * @param frame frame queued before
+     * @return true while the frame is in the queue
+     */
+    public boolean contains(Frame frame) {
+        return frames.contains(frame);
+    }
+
+
+    /**
+     * Method to get the number of frames discarded because the queue was full
+     *
+     * @return dropped frame count
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+
+    /**
+     * Method to get the number of frames written so far
+     *
+     * @return written frame count
+     */
+    public long framesWritten() {
+        return framesWritten;
+    }
+
+
+    /**
+     * Method to get the number of flushes so far, each is roughly one socket write
+     *
+     * @return flush count
+     */
+    public long flushes() {
+        return flushes;
+    }
+
+
+    /**
+     * Method to stop the writer thread, pending frames are discarded
+     *
+     * @return true for the first call only
+     */
+    public boolean close() {
+        if (!closed.compareAndSet(false, true)) return false;
+
+        frames.clear();
+        Thread thread = writer;
+        if (thread != null) thread.interrupt();
+        return true;
+    }
+
+
+    /**
+     * Method to stop the writer thread of a dropped connection but keep queueing frames
+     * <p>
+     * While detached a full queue drops its oldest frames whatever the policy, as there is
+     * nobody to block or disconnect.
+     *
+     * @return true for the first call since the queue was attached
+     */
+    public boolean detach() {
+        if (closed.get() || !detached.compareAndSet(false, true)) return false;
+
+        Thread thread = writer;
+        if (thread != null) thread.interrupt();
+        return true;
+    }
+
+
+    /**
+     * Method to write to a new connection of the client, a new writer thread must be started afterwards
+     *
+     * @param socket socket of the new connection
+     * @param out    stream of the new connection
+     */
+    public void attach(Socket socket, OutputStream out) {
+        this.socket = socket;
+        this.out = out;
+        tooSlow.set(false);
+        detached.set(false);
+    }
+
+
+    /**
+     * Writer loop, writes queued frames until the queue is closed or detached
+     */
+    @Override
+    public void run() {
+        writer = Thread.currentThread();
+
+        //a writer keeps the connection it was started for, even once the queue is attached to another
+        Socket socket = this.socket;
+        OutputStream out = this.out;
+        try {
+            while (!closed.get() && !detached.get()) {
+                Frame frame = frames.take();
+                int batch = write(out, frame);
+
+                //keep adding frames to the same write until the batch is big enough or the window is over
+                if (coalesceBytes > 0) {
+                    long deadline = System.nanoTime() + coalesceNanos;
+                    while (batch < coalesceBytes) {
+                        Frame next = frames.poll();
+                        if (next == null) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait <= 0) break;
+                            next = frames.poll(wait, TimeUnit.NANOSECONDS);
+                            if (next == null) break;
+                        }
+                        batch += write(out, next);
+                    }
+                }
+
+                out.flush();
+                flushes++;
+                recordBatch();
+            }
+        } catch (InterruptedException e) {
+            //queue closed
+        } catch (IOException e) {
+            closeSocket(socket);
+        }
+    }
+
+
+    private int write(OutputStream out, Frame frame) throws IOException {
+        Codec.Format current = format;
+        int threshold = compressThreshold;
+        frame.writeTo(out, current, threshold);
+        framesWritten++;
+        int length = frame.length(current, threshold);
+
+        if (stats != null) {
+            if (batchCount == batchFrames.length) {
+                batchFrames = Arrays.copyOf(batchFrames, batchCount * 2);
+                batchBytes = Arrays.copyOf(batchBytes, batchCount * 2);
+            }
+            batchFrames[batchCount] = frame;
+            batchBytes[batchCount++] = length;
+        }
+        return length;
+    }
+
+
+    /**
+     * Method to count the frames of the flushed batch, all of them reached the socket just now
+     */
+    private void recordBatch() {
+        if (stats == null) return;
+
+        long now = System.nanoTime();
+        for (int i = 0; i < batchCount; i++) {
+            stats.sent(batchFrames[i], batchBytes[i], now);
+            batchFrames[i] = null;
+        }
+        batchCount = 0;
+    }
+
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("Error in disconnecting client");
+        }
+    }
+}
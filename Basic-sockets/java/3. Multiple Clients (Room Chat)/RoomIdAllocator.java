@@ -0,0 +1,93 @@
+import java.security.SecureRandom;
+
+/**
+ * Hands out the room ids of a fixed range in random order, each id at most once until it is released.
+ * <p>
+ * The free ids are kept at the front of one array and the ids in use behind them, with a second
+ * array holding the position of every id. Allocating picks a random free position and swaps it
+ * with the last free one, releasing swaps the id back to the front, so both take constant time and
+ * allocate nothing however full the range is. The positions are drawn from a secure random
+ * generator, so a client cannot predict the id of the next room from the ids it has seen.
+ */
+public class RoomIdAllocator {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    //first id of the range and the ids with the free ones first
+    private final int min;
+    private final int[] ids;
+
+    //index into ids of every id, offset by min
+    private final int[] positions;
+
+    //number of free ids at the front of ids
+    private int free;
+
+    /**
+     * @param min first id of the range
+     * @param max id after the last one of the range
+     */
+    public RoomIdAllocator(int min, int max) {
+        if (min < 0 || max <= min) throw new IllegalArgumentException("Bad room id range " + min + "-" + max);
+
+        this.min = min;
+        this.ids = new int[max - min];
+        this.positions = new int[max - min];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = min + i;
+            positions[i] = i;
+        }
+        this.free = ids.length;
+    }
+
+
+    /**
+     * Method to take a random free id
+     *
+     * @return room id
+     * @throws IllegalStateException if every id of the range is in use
+     */
+    public synchronized int allocate() {
+        if (free == 0) throw new IllegalStateException("All " + ids.length + " room ids are in use");
+
+        int id = ids[RANDOM.nextInt(free)];
+        swap(positions[id - min], --free);
+        return id;
+    }
+
+
+    /**
+     * Method to give an id back so it can be allocated again
+     *
+     * @param id room id taken from {@link #allocate()}
+     * @throws IllegalArgumentException if the id is not in use
+     */
+    public synchronized void release(int id) {
+        if (id < min || id - min >= ids.length || positions[id - min] < free) {
+            throw new IllegalArgumentException("Room id " + id + " is not in use");
+        }
+        swap(positions[id - min], free++);
+    }
+
+
+    /**
+     * Method to get the number of ids in use
+     *
+     * @return ids in use
+     */
+    public synchronized int used() {
+        return ids.length - free;
+    }
+
+
+    /**
+     * Method to swap two ids and keep their positions up to date
+     */
+    private void swap(int i, int j) {
+        int a = ids[i];
+        int b = ids[j];
+        ids[i] = b;
+        ids[j] = a;
+        positions[b - min] = i;
+        positions[a - min] = j;
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks that {@link RoomIdAllocator} hands out every id of its range exactly once until released.
+ * <p>
+ * Run with {@code java RoomIdAllocatorTest}, exits with status 1 if any check fails.
+ */
+public class RoomIdAllocatorTest {
+    private static int failures;
+
+
+    public static void main(String[] args) {
+        run("every id once until the range is used up", RoomIdAllocatorTest::wholeRange);
+        run("released ids are handed out again", RoomIdAllocatorTest::release);
+        run("only ids in use are released", RoomIdAllocatorTest::badRelease);
+        run("ids come in random order", RoomIdAllocatorTest::randomOrder);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+
+    private static void wholeRange() {
+        RoomIdAllocator allocator = new RoomIdAllocator(1000, 10000);
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 9000; i++) {
+            int id = allocator.allocate();
+            check(id >= 1000 && id < 10000, "id " + id + " is in the range");
+            check(ids.add(id), "id " + id + " is handed out once");
+        }
+        check(allocator.used() == 9000, "every id is in use");
+
+        try {
+            allocator.allocate();
+            check(false, "a used up range is reported");
+        } catch (IllegalStateException expected) {
+            //no id left
+        }
+    }
+
+
+    private static void release() {
+        RoomIdAllocator allocator = new RoomIdAllocator(0, 3);
+        int a = allocator.allocate();
+        int b = allocator.allocate();
+        int c = allocator.allocate();
+
+        allocator.release(b);
+        check(allocator.used() == 2, "a released id is free");
+        check(allocator.allocate() == b, "the only free id is the released one");
+
+        allocator.release(a);
+        allocator.release(c);
+        Set<Integer> again = new HashSet<>();
+        again.add(allocator.allocate());
+        again.add(allocator.allocate());
+        check(again.equals(Set.of(a, c)), "both released ids come back");
+    }
+
+
+    private static void badRelease() {
+        RoomIdAllocator allocator = new RoomIdAllocator(1000, 10000);
+        int id = allocator.allocate();
+        allocator.release(id);
+
+        for (int bad : new int[]{id, 999, 10000}) {
+            try {
+                allocator.release(bad);
+                check(false, "releasing " + bad + " is refused");
+            } catch (IllegalArgumentException expected) {
+                //not in use or not in the range
+            }
+        }
+        check(allocator.used() == 0, "nothing in use after refused releases");
+    }
+
+
+    private static void randomOrder() {
+        //ten ids in a row counting up from the start of the range would mean no shuffling at all
+        RoomIdAllocator allocator = new RoomIdAllocator(1000, 10000);
+        boolean sequential = true;
+        int previous = allocator.allocate();
+        for (int i = 0; i < 10; i++) {
+            int id = allocator.allocate();
+            if (id != previous + 1) sequential = false;
+            previous = id;
+        }
+        check(!sequential, "ids are not handed out in sequence");
+    }
+
+
+    // Body of one check
+    interface Check {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Method to run one check and report whether it passed
+     */
+    private static void run(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+}
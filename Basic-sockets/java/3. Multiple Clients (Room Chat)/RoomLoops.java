@@ -0,0 +1,102 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Event loops that own the rooms, so every change to a room and every broadcast in it runs on one thread.
+ * <p>
+ * Each room is pinned to one of the loops by hashing its id. The client threads only read messages
+ * and hand whatever touches a room to the loop owning it, which works through its tasks in order.
+ * A room's members are therefore only ever touched by one thread and kept in a plain list without
+ * any lock, while busy rooms on different loops fan out on different cores without sharing anything.
+ * The messages of a client for one room stay in the order it sent them.
+ * <p>
+ * Turned on with e.g. {@code -Dchat.room.loops=4}, without it the thread of the client changes the
+ * room and fans out itself, under the room's lock.
+ */
+public class RoomLoops {
+
+    //settings read by the server, 0 loops leaves the rooms to the client threads
+    public static final String PROPERTY_LOOPS = "chat.room.loops";
+    public static final int DEFAULT_LOOPS = 0;
+
+    //tasks a loop may have waiting before handing it another blocks
+    private static final int LOOP_QUEUE_CAPACITY = 4096;
+
+    // Loop with the tasks its thread has not run yet
+    private static final class Loop {
+        final BlockingQueue<Runnable> tasks = new ArrayBlockingQueue<>(LOOP_QUEUE_CAPACITY);
+    }
+
+    private final Loop[] loops;
+
+    private RoomLoops(int count) {
+        this.loops = new Loop[count];
+        for (int i = 0; i < count; i++) {
+            Loop loop = new Loop();
+            loops[i] = loop;
+            Thread thread = new Thread(() -> run(loop), "room-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Method to create the loops described by the system properties
+     *
+     * @return loops with their threads started, null if they are turned off
+     */
+    public static RoomLoops fromProperties() {
+        int loops = Integer.getInteger(PROPERTY_LOOPS, DEFAULT_LOOPS);
+        if (loops <= 0) return null;
+        return new RoomLoops(loops);
+    }
+
+
+    /**
+     * Method to hand a task to the loop owning a room
+     * <p>
+     * Blocks while the loop has a full queue, so a client cannot run further ahead of its room.
+     * Must not be called from a loop, a loop waiting for its own queue would never get going again.
+     *
+     * @param roomId id of the room the task touches
+     * @param task   task to run on the loop
+     */
+    public void execute(int roomId, Runnable task) throws InterruptedException {
+        loops[(roomId * 0x9E3779B9 >>> 16) % loops.length].tasks.put(task);
+    }
+
+
+    /**
+     * Method to hand a task to the loop owning a room unless its queue is full, never waits
+     *
+     * @param roomId id of the room the task touches
+     * @param task   task to run on the loop
+     * @return true if the task was queued
+     */
+    public boolean offer(int roomId, Runnable task) {
+        return loops[(roomId * 0x9E3779B9 >>> 16) % loops.length].tasks.offer(task);
+    }
+
+
+    /**
+     * Method to run the tasks of one loop, runs on the thread of the loop
+     */
+    private static void run(Loop loop) {
+        while (true) {
+            Runnable task;
+            try {
+                task = loop.tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            //a failing task must not take the rooms of the loop down with it
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println("Error in room loop");
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Thread safe hash index of the rooms by their numeric id.
+ * <p>
+ * The ids are kept as plain ints in open addressed tables, so a lookup hashes the id and
+ * probes a few array slots without boxing. The rooms are spread over a fixed number of
+ * stripes, each with its own table and a lock taken by writers only. A room is added by writing
+ * the room into a free slot before its id, and removed by turning its id into a tombstone, so
+ * lookups never take a lock and only ever see a slot before or after a change.
+ * <p>
+ * A slot is never reused within a table, so a lookup cannot find one room under the id of
+ * another. Once the rooms and tombstones fill half a stripe's table, the stripe is rebuilt
+ * into a fresh table without the tombstones, grown until the rooms fill at most a quarter of it,
+ * so a stripe is rebuilt at most once every so many changes.
+ */
+public class RoomTable {
+    private static final int STRIPE_COUNT = 16;
+
+    //slot of a table that was never used, room ids are never negative
+    private static final int FREE = -1;
+
+    //slot of a room that was removed, probes go on past it
+    private static final int TOMBSTONE = -2;
+
+    // Open addressed table of one stripe, slots are written in place under the stripe's lock
+    private static final class Table {
+        final AtomicIntegerArray ids;
+        final AtomicReferenceArray<Server.Room> rooms;
+
+        //slots taken by rooms and tombstones, guarded by the stripe's lock
+        int used;
+
+        Table(int capacity) {
+            this.ids = new AtomicIntegerArray(capacity);
+            this.rooms = new AtomicReferenceArray<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                ids.set(i, FREE);
+            }
+        }
+    }
+
+    // Stripe holding one table
+    private static final class Stripe {
+        //guards writers only, readers just read the volatile table and its slots
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Table table = new Table(8);
+
+        //rooms in the table, written under the lock
+        volatile int size;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    public RoomTable() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+
+    /**
+     * Method to find a room by id
+     *
+     * @param roomId id of the room
+     * @return the room or null if there is none
+     */
+    public Server.Room get(int roomId) {
+        Table table = stripeOf(roomId).table;
+        int slot = find(table, roomId);
+        return slot < 0 ? null : table.rooms.get(slot);
+    }
+
+
+    /**
+     * Method to add a room unless its id is taken
+     *
+     * @param roomId id of the room, not negative
+     * @param room   room to add
+     * @return true if the room was added
+     */
+    public boolean putIfAbsent(int roomId, Server.Room room) {
+        if (roomId < 0) throw new IllegalArgumentException("Negative room id " + roomId);
+
+        Stripe stripe = stripeOf(roomId);
+        stripe.lock.lock();
+        try {
+            Table table = stripe.table;
+            if (find(table, roomId) >= 0) return false;
+
+            //keep the table at most half used so probes stay short and always reach a free slot
+            if ((table.used + 1) * 2 > table.ids.length()) {
+                table = rebuild(stripe);
+            }
+            insert(table, roomId, room);
+            stripe.size++;
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Method to remove a room, only if the id still maps to that room
+     *
+     * @param roomId id of the room
+     * @param room   room to remove
+     * @return true if the room was removed
+     */
+    public boolean remove(int roomId, Server.Room room) {
+        Stripe stripe = stripeOf(roomId);
+        stripe.lock.lock();
+        try {
+            Table table = stripe.table;
+            int slot = find(table, roomId);
+            if (slot < 0 || table.rooms.get(slot) != room) return false;
+
+            //the tombstone keeps the probe chains of the others intact
+            table.ids.set(slot, TOMBSTONE);
+            table.rooms.set(slot, null);
+            stripe.size--;
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Method to get the number of rooms
+     *
+     * @return room count
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+
+    /**
+     * Method to run an action for every room without locking
+     * <p>
+     * Each stripe is read once, so rooms created or deleted meanwhile may or may not be
+     * visited but nobody is visited twice.
+     *
+     * @param action action to run
+     */
+    public void forEach(Consumer<Server.Room> action) {
+        for (Stripe stripe : stripes) {
+            Table table = stripe.table;
+            for (int i = 0; i < table.ids.length(); i++) {
+                if (table.ids.get(i) < 0) continue;
+                Server.Room room = table.rooms.get(i);
+                if (room != null) action.accept(room);
+            }
+        }
+    }
+
+
+    /**
+     * Method to find the slot of an id
+     *
+     * @return slot, -1 if the id is not in the table
+     */
+    private static int find(Table table, int roomId) {
+        int mask = table.ids.length() - 1;
+        for (int i = slotOf(roomId, mask); ; i = (i + 1) & mask) {
+            int id = table.ids.get(i);
+            if (id == roomId) return i;
+            if (id == FREE) return -1;
+        }
+    }
+
+
+    /**
+     * Method to move the rooms of a stripe into a new table without tombstones, runs under the stripe's lock
+     *
+     * @return the new table, already published
+     */
+    private static Table rebuild(Stripe stripe) {
+        Table from = stripe.table;
+        int capacity = from.ids.length();
+        while ((stripe.size + 1) * 4 > capacity) capacity *= 2;
+
+        Table to = new Table(capacity);
+        for (int i = 0; i < from.ids.length(); i++) {
+            int id = from.ids.get(i);
+            if (id >= 0) insert(to, id, from.rooms.get(i));
+        }
+        stripe.table = to;
+        return to;
+    }
+
+
+    /**
+     * Method to put a room into the first free slot of its probe chain, runs under the stripe's lock
+     */
+    private static void insert(Table table, int roomId, Server.Room room) {
+        int mask = table.ids.length() - 1;
+        int i = slotOf(roomId, mask);
+        while (table.ids.get(i) != FREE) i = (i + 1) & mask;
+
+        //the room goes first, a lookup that finds the id always finds the room with it
+        table.rooms.set(i, room);
+        table.ids.set(i, roomId);
+        table.used++;
+    }
+
+
+    private Stripe stripeOf(int roomId) {
+        return stripes[(roomId * 0x9E3779B9 >>> 16) % STRIPE_COUNT];
+    }
+
+
+    private static int slotOf(int roomId, int mask) {
+        //a different hash than the stripe's, so the rooms of a stripe spread over all its slots
+        int hash = roomId * 0x85EBCA6B;
+        return (hash ^ (hash >>> 15)) & mask;
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the lookups and changes of {@link RoomTable}, alone and with readers running alongside writers.
+ * <p>
+ * Run with {@code java RoomTableTest}, exits with status 1 if any check fails.
+ */
+public class RoomTableTest {
+    private static int failures;
+
+
+    public static void main(String[] args) {
+        run("put, get and size", RoomTableTest::putAndGet);
+        run("remove only the same room", RoomTableTest::removeSameRoom);
+        run("every id of the range", RoomTableTest::wholeRange);
+        run("forEach visits every room once", RoomTableTest::forEach);
+        run("lookups during changes", RoomTableTest::concurrentLookups);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+
+    private static void putAndGet() {
+        RoomTable table = new RoomTable();
+        Server.Room room = room(4242);
+
+        check(table.get(4242) == null, "empty table has no room");
+        check(table.putIfAbsent(4242, room), "room is added");
+        check(table.get(4242) == room, "room is found");
+        check(!table.putIfAbsent(4242, room(4242)), "a taken id is not added again");
+        check(table.get(4242) == room, "the first room keeps the id");
+        check(table.get(4243) == null, "other ids have no room");
+        check(table.size() == 1, "one room");
+
+        try {
+            table.putIfAbsent(-1, room(-1));
+            check(false, "a negative id is refused");
+        } catch (IllegalArgumentException expected) {
+            //negative ids mark free slots
+        }
+    }
+
+
+    private static void removeSameRoom() {
+        RoomTable table = new RoomTable();
+        Server.Room room = room(1000);
+        table.putIfAbsent(1000, room);
+
+        check(!table.remove(1000, room(1000)), "another room with the id is not removed");
+        check(table.get(1000) == room, "room is still there");
+        check(table.remove(1000, room), "room is removed");
+        check(table.get(1000) == null, "removed room is gone");
+        check(!table.remove(1000, room), "a removed room is not removed twice");
+        check(table.size() == 0, "no rooms");
+
+        Server.Room again = room(1000);
+        check(table.putIfAbsent(1000, again), "the id can be used again");
+        check(table.get(1000) == again, "the new room is found");
+    }
+
+
+    private static void wholeRange() {
+        RoomTable table = new RoomTable();
+        List<Server.Room> rooms = new ArrayList<>();
+        for (int id = 1000; id < 10000; id++) {
+            Server.Room room = room(id);
+            rooms.add(room);
+            check(table.putIfAbsent(id, room), "room " + id + " is added");
+        }
+        check(table.size() == 9000, "every room is counted");
+
+        //remove every other room, the rest must still be found past the holes
+        for (int id = 1000; id < 10000; id += 2) {
+            check(table.remove(id, rooms.get(id - 1000)), "room " + id + " is removed");
+        }
+        for (int id = 1000; id < 10000; id++) {
+            Server.Room expected = id % 2 == 0 ? null : rooms.get(id - 1000);
+            check(table.get(id) == expected, "room " + id + " after removing every other");
+        }
+        check(table.size() == 4500, "half of the rooms are left");
+
+        //and fill the holes again
+        for (int id = 1000; id < 10000; id += 2) {
+            check(table.putIfAbsent(id, rooms.get(id - 1000)), "room " + id + " is added again");
+        }
+        for (int id = 1000; id < 10000; id++) {
+            check(table.get(id) == rooms.get(id - 1000), "room " + id + " after adding again");
+        }
+        check(table.size() == 9000, "every room is counted again");
+    }
+
+
+    private static void forEach() {
+        RoomTable table = new RoomTable();
+        Set<Integer> ids = new HashSet<>();
+        for (int id = 1000; id < 10000; id += 7) {
+            table.putIfAbsent(id, room(id));
+            ids.add(id);
+        }
+        table.remove(1007, table.get(1007));
+        ids.remove(1007);
+
+        Set<Integer> visited = new HashSet<>();
+        table.forEach(room -> check(visited.add(room.id), "room " + room.id + " visited once"));
+        check(visited.equals(ids), "every room visited");
+    }
+
+
+    private static void concurrentLookups() throws Exception {
+        RoomTable table = new RoomTable();
+
+        //rooms that stay in the table the whole time, readers must always find them
+        for (int id = 1000; id < 10000; id += 10) {
+            table.putIfAbsent(id, room(id));
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        //writers keep adding and removing the rooms in between, each its own ids
+        for (int w = 0; w < 2; w++) {
+            int first = 1001 + w;
+            threads.add(new Thread(() -> {
+                for (int round = 0; round < 50; round++) {
+                    for (int id = first; id < 10000; id += 10) {
+                        if (!table.putIfAbsent(id, room(id))) failure.compareAndSet(null, "writer could not add " + id);
+                    }
+                    for (int id = first; id < 10000; id += 10) {
+                        if (!table.remove(id, table.get(id))) failure.compareAndSet(null, "writer could not remove " + id);
+                    }
+                }
+            }));
+        }
+        int writers = threads.size();
+
+        //readers never see a room under another id nor miss a room that stays
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                while (!done.get()) {
+                    for (int id = 1000; id < 10000; id++) {
+                        Server.Room room = table.get(id);
+                        if (room != null && room.id != id) failure.compareAndSet(null, "id " + id + " gave room " + room.id);
+                        if (room == null && id % 10 == 0) failure.compareAndSet(null, "room " + id + " was missed");
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) thread.start();
+        for (int i = 0; i < writers; i++) threads.get(i).join();
+        done.set(true);
+        for (Thread thread : threads) thread.join();
+
+        check(failure.get() == null, String.valueOf(failure.get()));
+        check(table.size() == 900, "only the rooms that stay are left");
+    }
+
+
+    private static Server.Room room(int id) {
+        Server.Room room = new Server.Room();
+        room.id = id;
+        room.roomId = String.valueOf(id);
+        return room;
+    }
+
+
+    // Body of one check
+    interface Check {
+        void run() throws Exception;
+    }
+
+
+    /**
+     * Method to run one check and report whether it passed
+     */
+    private static void run(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+}
@@ -1,31 +1,72 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
     // Client class for storing client information
     static class Client {
         String clientId;
-        String clientName;
-        BufferedReader reader;
-        BufferedWriter writer;
-        Socket socket;
+        volatile String clientName;
+        MessageReader reader;
+        BufferedOutputStream writer;
+        volatile Socket socket;
+
+        //presented by the client to resume its session after a dropped connection
+        String token;
+
+        //frames waiting for the writer thread of this client
+        OutboundQueue outbound;
+
+        //pings the client when it goes quiet, null when heartbeats are off
+        Heartbeat heartbeat;
+
+        //limits the chat messages of the client, null when limiting is off
+        TokenBucket limiter;
+
+        //rooms the client is in, so leaving only touches those
+        Set<Room> rooms = ConcurrentHashMap.newKeySet();
+
+        //set once the client left for good, it cannot join a room afterwards
+        volatile boolean left;
     }
 
     // Room class for storing room information
     static class Room {
         String roomId;
+
+        //numeric id, the key of the room in the room table and of its loop
+        int id;
+
+        //a plain list only the room's loop touches, or copy on write without loops so broadcasts
+        //iterate without locking while clients join and leave
         List<Client> clients;
+
+        //set once the last client left, nobody can join the room afterwards
+        boolean closed;
+
+        //limits the chat messages of the whole room, null when room limiting is off
+        TokenBucket limiter;
+
+        //batches the messages of the room while it is busy, null when ticks are off
+        DeliveryTick tick;
     }
 
     // Constants
     public static final String METHOD_GET_ID = "get id";
     public static final String METHOD_NEW_USER = "new user";
     public static final String METHOD_SEND_MSG = "send message";
+    public static final String METHOD_PING = "ping";
+    public static final String METHOD_PONG = "pong";
+    public static final String METHOD_RATE_LIMITED = "rate limited";
+    public static final String METHOD_STATS = "stats";
     public static final String METHOD_CREATE_ROOM = "create room";
     public static final String METHOD_JOIN_ROOM = "join room";
 
@@ -34,15 +75,113 @@ public class Server {
     public static final String KEY_USER_NAME = "userName";
     public static final String KEY_MESSAGE = "message";
     public static final String KEY_ROOM_ID = "roomId";
+    public static final String KEY_COMPRESSION = "compression";
+    public static final String KEY_TOKEN = "token";
+    public static final String KEY_RESUMED = "resumed";
+    public static final String KEY_GRACE_MILLIS = "graceMillis";
+
+    //port the server listens on for clients, e.g. -Dchat.port=8081
+    public static final String PROPERTY_PORT = "chat.port";
 
     ServerSocket serverSocket;
 
-    // List of rooms
-    List<Room> rooms;
+    // Rooms by id
+    RoomTable rooms;
+
+    // Ids of the rooms in range 1000-9999, handed out in random order
+    RoomIdAllocator roomIds;
+
+    // Threads owning the rooms, null when the client threads change the rooms themselves
+    RoomLoops loops;
+
+    // Starts a virtual thread per client, null when each client gets a platform thread
+    ExecutorService virtualThreads;
+
+    // Size of each client's outbound queue and what to do when it is full
+    int queueCapacity;
+    OutboundQueue.OverflowPolicy overflowPolicy;
+
+    // Batch size and wait for coalescing several frames into one socket write, 0 bytes turns it off
+    int coalesceBytes;
+    long coalesceMicros;
+
+    // Smallest frame sent compressed to clients that agree on compression, 0 turns it off
+    int compressThreshold;
+
+    // Sessions of dropped clients waiting for them to come back, null when resumption is off
+    SessionStore<Client> sessions;
+
+    // Timers of the heartbeats and how long a client may stay silent, null when heartbeats are off
+    TimingWheel timers;
+    long heartbeatIdleMillis;
+    long heartbeatTimeoutMillis;
+
+    // Messages per second and burst allowed to each client, a rate of 0 turns limiting off
+    double messageRate;
+    int messageBurst;
+
+    // Messages per second and burst allowed to all the clients of a room together, off by default
+    double roomRate;
+    int roomBurst;
+
+    // Delivery tick of busy rooms and the messages per second that make a room busy, 0 millis turns it off
+    long tickMillis;
+    int tickThreshold;
+    TimingWheel tickTimers;
+
+    // Threads sending the batches of the ticks without room loops, the tick timer only hands them over
+    ExecutorService tickFlushes;
+
+    // Number of chat messages refused for going over a rate
+    LongAdder rejectedMessages = new LongAdder();
+
+    // Counters and latency histograms, always on
+    Stats stats = new Stats();
 
     Server(ServerSocket serverSocket) {
+        this(serverSocket, false);
+    }
+
+    Server(ServerSocket serverSocket, boolean virtualThreads) {
         this.serverSocket = serverSocket;
-        this.rooms = new ArrayList<>();
+        this.rooms = new RoomTable();
+        this.roomIds = new RoomIdAllocator(1000, 10000);
+        if (virtualThreads) this.virtualThreads = newVirtualThreadExecutor();
+        this.queueCapacity = Integer.getInteger(OutboundQueue.PROPERTY_CAPACITY, OutboundQueue.DEFAULT_CAPACITY);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.parse(
+                System.getProperty(OutboundQueue.PROPERTY_POLICY, OutboundQueue.DEFAULT_POLICY.name()));
+        this.coalesceBytes = Integer.getInteger(OutboundQueue.PROPERTY_COALESCE_BYTES, 0);
+        this.coalesceMicros = Long.getLong(OutboundQueue.PROPERTY_COALESCE_MICROS, 0);
+        this.compressThreshold = Integer.getInteger(Codec.PROPERTY_COMPRESS_THRESHOLD, Codec.DEFAULT_COMPRESS_THRESHOLD);
+        this.messageRate = Double.parseDouble(System.getProperty(TokenBucket.PROPERTY_RATE, String.valueOf(TokenBucket.DEFAULT_RATE)));
+        this.messageBurst = Integer.getInteger(TokenBucket.PROPERTY_BURST, TokenBucket.DEFAULT_BURST);
+        this.roomRate = Double.parseDouble(System.getProperty(TokenBucket.PROPERTY_ROOM_RATE, "0"));
+        this.roomBurst = Integer.getInteger(TokenBucket.PROPERTY_ROOM_BURST, TokenBucket.DEFAULT_BURST);
+        this.heartbeatIdleMillis = Long.getLong(Heartbeat.PROPERTY_IDLE_MILLIS, Heartbeat.DEFAULT_IDLE_MILLIS);
+        this.heartbeatTimeoutMillis = Long.getLong(Heartbeat.PROPERTY_TIMEOUT_MILLIS, Heartbeat.DEFAULT_TIMEOUT_MILLIS);
+        if (heartbeatIdleMillis > 0) {
+            //100 ms ticks, one revolution of the wheel is about 51 seconds
+            this.timers = new TimingWheel(100, 512);
+            timers.start();
+        }
+        this.sessions = SessionStore.fromProperties(timers);
+        this.loops = RoomLoops.fromProperties();
+        this.tickMillis = Long.getLong(DeliveryTick.PROPERTY_MILLIS, DeliveryTick.DEFAULT_MILLIS);
+        this.tickThreshold = Integer.getInteger(DeliveryTick.PROPERTY_THRESHOLD, DeliveryTick.DEFAULT_THRESHOLD);
+        if (tickMillis > 0) {
+            //much finer than the heartbeat wheel, a batch should not wait more than about one tick
+            this.tickTimers = new TimingWheel(Math.max(1, tickMillis / 5), 64);
+            tickTimers.start();
+
+            //room loops send the batches of their rooms themselves
+            if (loops == null) {
+                this.tickFlushes = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                    Thread thread = new Thread(task, "room-tick");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
     }
 
 
@@ -59,44 +198,26 @@ public class Server {
                 //create a new client
                 Client client = new Client();
                 client.socket = socket;
-                client.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                client.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                client.reader = new MessageReader(socket.getInputStream());
+                client.writer = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, coalesceBytes));
+
+                //frames are already batched when coalescing, Nagle would only hold the batches back
+                if (coalesceBytes > 0) socket.setTcpNoDelay(true);
+
+                //every client gets its own writer thread draining its outbound queue
+                client.outbound = new OutboundQueue(socket, client.writer, queueCapacity, overflowPolicy,
+                        coalesceBytes, coalesceMicros, stats);
+                if (messageRate > 0) client.limiter = new TokenBucket(messageRate, messageBurst);
+                startClientThread(client.outbound);
 
                 //generate a unique id for the client and send it to the client
                 client.clientId = Utils.generateId();
+                if (sessions != null) client.token = SessionStore.newToken();
                 sendIDToClient(client);
+                startHeartbeat(client);
 
                 //forward each client to a new thread
-                new Thread(() -> {
-                    while (!client.socket.isClosed()) {
-                        try {
-                            //read data from client
-                            String data = client.reader.readLine();
-
-                            //parse the data to a map
-                            Map<String, String> map = Utils.messageToMap(data);
-
-                            //if method new user
-                            if (map.get(KEY_TYPE).equals(METHOD_NEW_USER)) {
-                                newClient(map);
-                            }
-                            //if method send message
-                            else if (map.get(KEY_TYPE).equals(METHOD_SEND_MSG)) {
-                                sendChat(map);
-                            }
-                            //if method create room
-                            else if (map.get(KEY_TYPE).equals(METHOD_CREATE_ROOM)) {
-                                createRoom(client);
-                            }
-                            //if method join room
-                            else if (map.get(KEY_TYPE).equals(METHOD_JOIN_ROOM)) {
-                                joinRoom(map, client);
-                            }
-                        } catch (Exception e) {
-                            disconnectClient(client);
-                        }
-                    }
-                }).start();
+                startClientThread(() -> serve(client));
             } catch (Exception e) {
                 System.out.println("Server Disconnected");
             }
@@ -104,6 +225,121 @@ public class Server {
     }
 
 
+    /**
+     * Method to read and handle the messages of a client until its connection closes
+     *
+     * @param client client to serve
+     */
+    private void serve(Client client) {
+        //a resumed client gets a new socket, this loop stays with the one it started on
+        Socket socket = client.socket;
+        MessageReader reader = client.reader;
+
+        while (!socket.isClosed()) {
+            try {
+                //read the next message, the same object is reused for every message of this client
+                Message message = reader.next();
+
+                //any message, a pong included, shows the client is alive
+                if (client.heartbeat != null) client.heartbeat.seen();
+                stats.received(message.length);
+
+                //replies follow the format the client last spoke
+                client.outbound.setFormat(message.format);
+
+                //if method new user
+                if (message.is(METHOD_NEW_USER)) {
+                    acceptCompression(message, client);
+                    Client resumed = resumeSession(message, client);
+                    if (resumed != null) {
+                        //this thread reads for the resumed client from now on
+                        client = resumed;
+                        continue;
+                    }
+                    newClient(message, client);
+                }
+                //if method send message
+                else if (message.is(METHOD_SEND_MSG)) {
+                    sendChat(message, client);
+                }
+                //if method create room
+                else if (message.is(METHOD_CREATE_ROOM)) {
+                    createRoom(client);
+                }
+                //if method join room
+                else if (message.is(METHOD_JOIN_ROOM)) {
+                    joinRoom(message, client);
+                }
+                //if method stats
+                else if (message.is(METHOD_STATS)) {
+                    sendStats(message, client);
+                }
+            } catch (Exception e) {
+                //a client that already resumed on another connection is not disconnected
+                if (client.socket != socket) return;
+                disconnectClient(client);
+            }
+        }
+    }
+
+
+    /**
+     * Method to run the read loop of a client on its own thread
+     * <p>
+     * Virtual threads park instead of holding a platform thread while blocked in
+     * readLine or in a socket write, so thousands of mostly idle clients only cost
+     * a small heap allocated stack each.
+     *
+     * @param task read loop of the client
+     */
+    private void startClientThread(Runnable task) {
+        if (virtualThreads != null) {
+            virtualThreads.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+
+    /**
+     * Method to create an executor starting a virtual thread per task
+     * <p>
+     * Looked up reflectively, so the server still compiles and runs on JDKs before 21 and
+     * serves clients on platform threads there.
+     *
+     * @return the executor, null if this JDK has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need JDK 21, serving clients on platform threads");
+            return null;
+        }
+    }
+
+
+    /**
+     * Method to watch a client for silence, an idle client is pinged and evicted if it does not answer
+     *
+     * @param client client to watch
+     */
+    private void startHeartbeat(Client client) {
+        if (timers == null) return;
+
+        client.heartbeat = new Heartbeat(timers, heartbeatIdleMillis, heartbeatTimeoutMillis,
+                //the wheel thread never waits for a full queue, the client then just misses this ping
+                () -> client.outbound.tryOffer(Heartbeat.PING),
+                () -> {
+                    System.out.println("Client timed out: " + (client.clientName == null ? client.clientId : client.clientName));
+
+                    //only close the socket here, the reader thread of the client disconnects it off the timer thread
+                    closeSocket(client);
+                });
+        client.heartbeat.start();
+    }
+
+
     /**
      * Method for sending id to the client
      *
@@ -111,14 +347,7 @@ public class Server {
      */
     public void sendIDToClient(Client client) {
         try {
-            Map<String, String> map = new HashMap<>();
-            map.put(Server.KEY_USER_ID, client.clientId);
-            map.put(Server.KEY_USER_NAME, client.clientName);
-            map.put(Server.KEY_TYPE, Server.METHOD_GET_ID);
-
-            client.writer.write(map.toString());
-            client.writer.newLine();
-            client.writer.flush();
+            sendFrame(client, Frame.of(idMessage(client, false)));
         } catch (Exception e) {
             System.out.println("Error sending id to client");
         }
@@ -126,206 +355,422 @@ public class Server {
 
 
     /**
-     * Method to send a unique id to the client
+     * Method to build the get id message of a client
      *
-     * @param map map containing the client information
+     * @param client  client the message is for
+     * @param resumed whether the client just took its parked session back
+     * @return get id message
      */
-    private void newClient(Map<String, String> map) {
-        //get client info from map
-        String senderId = map.get(KEY_USER_ID);
-        String senderName = map.get(KEY_USER_NAME);
-        String roomId = map.get(KEY_ROOM_ID);
-
-        //getting room of the client from the list of rooms
-        int roomIndex = 0;
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i).roomId.equals(roomId)) {
-                roomIndex = i;
-                break;
-            }
+    private Map<String, String> idMessage(Client client, boolean resumed) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_USER_ID, client.clientId);
+        map.put(Server.KEY_TYPE, Server.METHOD_GET_ID);
+
+        //a resumed client is told so and gets its name back, a new one has no name yet
+        if (resumed) {
+            map.put(Server.KEY_USER_NAME, client.clientName);
+            map.put(Server.KEY_RESUMED, "true");
         }
 
-        //setting the client name in client list in the room
-        List<Client> clients = rooms.get(roomIndex).clients;
-        for (int i = 0; i < clients.size(); i++) {
-            if (clients.get(i).clientId.equals(senderId)) {
-                clients.get(i).clientName = senderName;
-                break;
-            }
+        //token to resume the session with if the connection drops, and how long it is kept
+        if (client.token != null) {
+            map.put(Server.KEY_TOKEN, client.token);
+            map.put(Server.KEY_GRACE_MILLIS, Long.toString(sessions.graceMillis()));
+        }
+
+        //offer compression, the client accepts it in its new user message
+        if (compressThreshold > 0) map.put(Server.KEY_COMPRESSION, Codec.COMPRESSION_DEFLATE);
+        return map;
+    }
+
+
+    /**
+     * Method to hand a new connection over to the parked session whose token it presents
+     * <p>
+     * The new connection was only a stand-in and goes without a join or leave broadcast. The
+     * client is sent its old id, name and room, and then every frame queued while it was away,
+     * up to the capacity of its queue. Frames that were being written when the connection
+     * dropped are lost with it.
+     *
+     * @param message new user message holding the token
+     * @param client  stand-in client of the new connection
+     * @return resumed client, null if there is no session for the token
+     */
+    private Client resumeSession(Message message, Client client) throws IOException {
+        if (sessions == null) return null;
+
+        Client resumed = sessions.resume(message.get(KEY_TOKEN));
+        if (resumed == null) return null;
+
+        //drop the stand-in quietly, it never joined a room
+        if (client.heartbeat != null) client.heartbeat.stop();
+        client.outbound.close();
+
+        //the new token the client was just given replaces the used one
+        resumed.token = client.token;
+        resumed.reader = client.reader;
+        resumed.writer = client.writer;
+        resumed.socket = client.socket;
+        resumed.outbound.setFormat(client.outbound.format());
+        acceptCompression(message, resumed);
+
+        //the parked client never left its room
+        Map<String, String> reply = idMessage(resumed, true);
+        for (Room room : resumed.rooms) {
+            reply.put(KEY_ROOM_ID, room.roomId);
         }
 
-        //updating the room list as update only happens in the copy of client list
-        Room updatedRoom = new Room();
-        updatedRoom.roomId = roomId;
-        updatedRoom.clients = clients;
-        rooms.set(roomIndex, updatedRoom);
+        //the reply goes out ahead of the frames queued while the client was away
+        Frame.of(reply).writeTo(client.writer, client.outbound.format());
+        client.writer.flush();
 
-        System.out.println("Client Connected: " + senderName);
-        //broadcast the new client to all the clients
-        broadcastMessage("joined the chat", senderId, senderName, clients);
+        resumed.outbound.attach(client.socket, client.writer);
+        startClientThread(resumed.outbound);
+        startHeartbeat(resumed);
+        System.out.println("Client Resumed: " + resumed.clientName);
+        return resumed;
     }
 
 
     /**
-     * Method to send a message to all the clients
+     * Method to compress large frames for a client that accepted the offer in its new user message
+     *
+     * @param message new user message of the client
+     * @param client  client that sent it
+     */
+    private void acceptCompression(Message message, Client client) {
+        if (compressThreshold > 0 && Codec.COMPRESSION_DEFLATE.equals(message.get(KEY_COMPRESSION))) {
+            client.outbound.setCompression(compressThreshold);
+        }
+    }
+
+
+    /**
+     * Method to send a unique id to the client
      *
-     * @param map map containing the message information
+     * @param message message containing the client information
+     * @param client  client that sent the message
      */
-    private void sendChat(Map<String, String> map) {
-        //getting sender info from map
-        String senderId = map.get(KEY_USER_ID);
-        String senderName = map.get(KEY_USER_NAME);
-        String roomId = map.get(KEY_ROOM_ID);
-        String msg = map.get(KEY_MESSAGE);
-
-        //getting client list from the room list using room id
-        List<Client> clients = null;
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i).roomId.equals(roomId)) {
-                clients = rooms.get(i).clients;
-                break;
+    private void newClient(Message message, Client client) {
+        //get client info from message
+        String senderId = message.get(KEY_USER_ID);
+        String senderName = message.get(KEY_USER_NAME);
+        String roomId = message.get(KEY_ROOM_ID);
+
+        //getting room of the client from the room index
+        Room room = findRoom(roomId);
+        if (room == null) {
+            sendJoinResult(client, null);
+            return;
+        }
+
+        inRoom(room, () -> {
+            //a client reconnecting after its session ran out joins its room again, if it is still there
+            if (!client.rooms.contains(room) && !addClient(room, client)) {
+                sendJoinResult(client, null);
+                return;
             }
+            client.clientName = senderName;
+
+            System.out.println("Client Connected: " + senderName);
+            //broadcast the new client to all the clients
+            broadcastToRoom(room, "joined the chat", senderId, senderName);
+        });
+    }
+
+
+    /**
+     * Method to send a message to all the clients
+     *
+     * @param message message containing the message information
+     * @param client  client that sent the message
+     */
+    private void sendChat(Message message, Client client) {
+        //refuse messages over the client's rate before they cost a fan-out
+        if (client.limiter != null && !client.limiter.tryAcquire()) {
+            rejectedMessages.increment();
+            sendFrame(client, TokenBucket.REJECTED);
+            return;
         }
 
-        //this will never happen
-        if (clients == null) return;
+        //getting sender info from message
+        String senderId = message.get(KEY_USER_ID);
+        String senderName = message.get(KEY_USER_NAME);
+        String roomId = message.get(KEY_ROOM_ID);
+        String msg = message.get(KEY_MESSAGE);
+
+        //getting the room from the room index using room id
+        Room room = findRoom(roomId);
 
-        //broadcast the message to all the clients
-        broadcastMessage(msg, senderId, senderName, clients);
+        //the room was deleted or never existed
+        if (room == null) return;
+
+        inRoom(room, () -> {
+            //a busy room is limited as a whole too
+            if (room.limiter != null && !room.limiter.tryAcquire()) {
+                rejectedMessages.increment();
+                sendFrame(client, TokenBucket.REJECTED);
+                return;
+            }
+
+            //broadcast the message to all the clients
+            broadcastToRoom(room, msg, senderId, senderName);
+        });
     }
 
 
     private void createRoom(Client client) {
 
-        //generate a unique room id in range 1000-9999
-        String roomId = String.valueOf(Utils.generateRoomId(rooms));
+        //take a free room id in range 1000-9999
+        int id;
+        try {
+            id = roomIds.allocate();
+        } catch (IllegalStateException e) {
+            //every id is taken, the client may try again once a room is deleted
+            System.out.println("Error creating room: " + e.getMessage());
+            Map<String, String> response = new HashMap<>();
+            response.put(KEY_TYPE, METHOD_CREATE_ROOM);
+            response.put(KEY_MESSAGE, "fail");
+            sendFrame(client, Frame.of(response));
+            return;
+        }
 
-        //create a new room
+        //create a new room with the client in it
         Room room = new Room();
-        room.roomId = roomId;
-
-        //create a new client list and add the client to it
-        room.clients = new ArrayList<>();
+        room.id = id;
+        room.roomId = String.valueOf(id);
+        room.clients = loops != null ? new ArrayList<>() : new CopyOnWriteArrayList<>();
         room.clients.add(client);
-        rooms.add(room);
+        client.rooms.add(room);
+        if (roomRate > 0) room.limiter = new TokenBucket(roomRate, roomBurst);
+        if (tickMillis > 0) room.tick = new DeliveryTick(this, room);
+        rooms.putIfAbsent(id, room);
+
+        //the client may have left while the room was being created
+        if (client.left) inRoom(room, () -> removeClient(room, client));
 
         try {
             //send the room id to the client
             Map<String, String> response = new HashMap<>();
             response.put(KEY_TYPE, METHOD_CREATE_ROOM);
-            response.put(KEY_ROOM_ID, roomId);
-            client.writer.write(response.toString());
-            client.writer.newLine();
-            client.writer.flush();
+            response.put(KEY_ROOM_ID, room.roomId);
+            sendFrame(client, Frame.of(response));
         } catch (Exception e) {
             System.out.println("Error sending room id to client");
         }
     }
 
 
-    private void joinRoom(Map<String, String> map, Client client) {
+    private void joinRoom(Message message, Client client) {
 
-        //get room id from map to which the client wants to join
-        String roomId = map.get(KEY_ROOM_ID);
+        //get room id from message to which the client wants to join
+        String roomId = message.get(KEY_ROOM_ID);
 
-        //for checking if the room exists
-        boolean isRoomExist = false;
+        //find the room and add the client to it, unless it was just deleted
+        Room room = findRoom(roomId);
 
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i).roomId.equals(roomId)) {
-                isRoomExist = true;
-                break;
-            }
+        //room not exists
+        if (room == null) {
+            sendJoinResult(client, null);
+            return;
         }
+        inRoom(room, () -> sendJoinResult(client, addClient(room, client) ? room.roomId : null));
+    }
 
-        //if room exists
-        if (isRoomExist) {
-            for (int i = 0; i < rooms.size(); i++) {
-                if (rooms.get(i).roomId.equals(roomId)) {
-                    //add the client to the client list of the room
-                    rooms.get(i).clients.add(client);
-                    break;
-                }
-            }
 
-            try {
-                //send the room id to the client with success message
-                Map<String, String> response = new HashMap<>();
-                response.put(KEY_TYPE, METHOD_JOIN_ROOM);
-                response.put(KEY_ROOM_ID, roomId);
-                response.put(KEY_MESSAGE, "success");
-                client.writer.write(response.toString());
-                client.writer.newLine();
-                client.writer.flush();
-            } catch (Exception e) {
-                System.out.println("Error sending room id to client");
-            }
+    /**
+     * Method to tell a client whether it joined a room
+     *
+     * @param client client that asked to join
+     * @param roomId id of the room it joined, null if it could not join
+     */
+    private void sendJoinResult(Client client, String roomId) {
+        try {
+            //send the room id to the client with success message, or no room id with failure message
+            Map<String, String> response = new HashMap<>();
+            response.put(KEY_TYPE, METHOD_JOIN_ROOM);
+            if (roomId != null) response.put(KEY_ROOM_ID, roomId);
+            response.put(KEY_MESSAGE, roomId != null ? "success" : "fail");
+            sendFrame(client, Frame.of(response));
+        } catch (Exception e) {
+            System.out.println("Error sending room id to client");
         }
-        //room not exists
-        else {
-            try {
-                //send the null room id to the client with failure message
-                Map<String, String> response = new HashMap<>();
-                response.put(KEY_TYPE, METHOD_JOIN_ROOM);
-                response.put(KEY_MESSAGE, "fail");
-                client.writer.write(response.toString());
-                client.writer.newLine();
-                client.writer.flush();
-            } catch (Exception e) {
-                System.out.println("Error sending room id to client");
-            }
+    }
+
+
+    /**
+     * Method to run a task that changes a room or fans out in it
+     * <p>
+     * With room loops the task runs later on the loop owning the room, after the tasks handed to
+     * it before, otherwise it runs right away on the calling thread.
+     *
+     * @param room room the task touches
+     * @param task task to run
+     */
+    void inRoom(Room room, Runnable task) {
+        if (loops == null) {
+            task.run();
+            return;
+        }
+        try {
+            loops.execute(room.id, task);
+        } catch (InterruptedException e) {
+            System.out.println("Error handing task to room loop");
+        }
+    }
+
+
+    /**
+     * Method to find a room by the id a client sent
+     *
+     * @param roomId room id as sent, may be null or not a number
+     * @return the room or null if there is none
+     */
+    private Room findRoom(String roomId) {
+        if (roomId == null) return null;
+        try {
+            return rooms.get(Integer.parseInt(roomId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Method to add a client to a room, unless the room was deleted meanwhile
+     *
+     * @param room   room to join
+     * @param client client joining
+     * @return true if the client is now in the room
+     */
+    private boolean addClient(Room room, Client client) {
+        //with loops only the room's own loop gets here, without them the room's lock keeps joins and its deletion apart
+        if (loops != null) return addMember(room, client);
+        synchronized (room) {
+            return addMember(room, client);
+        }
+    }
+
+
+    private boolean addMember(Room room, Client client) {
+        if (room.closed) return false;
+        room.clients.add(client);
+        client.rooms.add(room);
+
+        //leave sets the flag before it reads the client's rooms, so one of the two sees the other
+        if (client.left) {
+            removeMember(room, client);
+            return false;
         }
+        return true;
+    }
+
+
+    /**
+     * Method to remove a client from a room, the room is deleted with its last client
+     *
+     * @param room   room to leave
+     * @param client client leaving
+     * @return true if the client was in the room
+     */
+    private boolean removeClient(Room room, Client client) {
+        if (loops != null) return removeMember(room, client);
+        synchronized (room) {
+            return removeMember(room, client);
+        }
+    }
+
+
+    private boolean removeMember(Room room, Client client) {
+        client.rooms.remove(room);
+        if (!room.clients.remove(client)) return false;
+        if (!room.clients.isEmpty()) return true;
+
+        //no joins after this point, a client finding the room in the index meanwhile is refused
+        room.closed = true;
+        rooms.remove(room.id, room);
+        roomIds.release(room.id);
+        System.out.println("Room " + room.roomId + " deleted");
+        return true;
+    }
+
+    /**
+     * Method to send an admin a snapshot of the counters and latency percentiles
+     *
+     * @param message message containing the admin token
+     * @param client  client asking
+     */
+    private void sendStats(Message message, Client client) {
+        //requests from anybody but an admin are ignored
+        if (!stats.allowed(client.socket.getInetAddress(), message.get(KEY_MESSAGE))) return;
+
+        Map<String, String> map = stats.snapshot();
+        map.put("rateLimited", Long.toString(rejectedMessages.sum()));
+        sendFrame(client, Frame.of(map));
     }
 
+
     /**
      * Method to disconnect a client
+     * <p>
+     * With resumption on a client that entered a name is parked instead, and only leaves its
+     * room if it does not come back within the grace window.
      *
      * @param client client to disconnect
      */
     public void disconnectClient(Client client) {
-        //client disconnected before joining any room
-        if (client.clientName == null) {
+        if (sessions != null && client.clientName != null) {
+            //stop the writer thread but keep queueing, only the first call goes further
+            if (!client.outbound.detach()) return;
+            if (client.heartbeat != null) client.heartbeat.stop();
+
+            System.out.println("Client Dropped: " + client.clientName);
+            //the leave is broadcast on a client thread, never on the shared timer thread
+            sessions.park(client.token, client, () -> startClientThread(() -> leave(client)));
+            closeSocket(client);
             return;
         }
+        leave(client);
+    }
 
-        System.out.println("Client Disconnected: " + client.clientName);
-
-        //iterate through all the rooms for searching the client to disconnect
-        for (Room room : rooms) {
-
-            //iterate through all the clients in the current room
-            List<Client> clients = room.clients;
 
-            for (int i = 0; i < clients.size(); i++) {
-                if (clients.get(i).clientId.equals(client.clientId)) {
-                    //remove the client from the client list
-                    clients.remove(i);
-                    break;
+    /**
+     * Method to remove a client from its room for good
+     *
+     * @param client client leaving
+     */
+    private void leave(Client client) {
+        //stop the writer thread, only the first call goes further
+        if (!client.outbound.close()) {
+            return;
+        }
+        if (client.heartbeat != null) client.heartbeat.stop();
+
+        //leave every room the client is in, even one it created without entering a name
+        client.left = true;
+        String name = client.clientName;
+        if (name != null) System.out.println("Client Disconnected: " + name);
+        for (Room room : client.rooms) {
+            inRoom(room, () -> {
+                //tell the clients still in the room
+                if (removeClient(room, client) && name != null) {
+                    broadcastToRoom(room, "left the chat", client.clientId, name);
                 }
-            }
-
-            //update the room list as update only happens in the copy of client list
-            Room updatedRoom = new Room();
-            updatedRoom.roomId = room.roomId;
-            updatedRoom.clients = clients;
-            rooms.set(rooms.indexOf(room), updatedRoom);
+            });
+        }
 
-            //broadcast the client disconnect to all the clients in the room
-            broadcastMessage("left the chat", client.clientId, client.clientName, clients);
+        closeSocket(client);
+    }
 
-            //if client list is empty then remove the room from the room list
-            if (clients.size() == 0) {
-                rooms.remove(room);
-                System.out.println("Room " + room.roomId + " deleted");
-                break;
-            }
-        }
 
+    /**
+     * Method to close the socket of a client, which also ends its read loop
+     *
+     * @param client client to close
+     */
+    private void closeSocket(Client client) {
         try {
             client.socket.close();
-
-            //terminate the thread of the client
-            Thread.currentThread().join();
         } catch (Exception ex) {
             System.out.println("Error in disconnecting client");
         }
@@ -340,24 +785,137 @@ public class Server {
      * @param senderName name of the sender
      */
     public void broadcastMessage(String message, String senderId, String senderName, List<Client> clients) {
+        broadcastFrame(chatFrame(message, senderName), senderId, clients);
+    }
+
+
+    /**
+     * Method to send a message to the clients of a room, with the other messages of the tick while the room is busy
+     *
+     * @param room       room to send to
+     * @param message    message to broadcast
+     * @param senderId   id of the sender
+     * @param senderName name of the sender
+     */
+    private void broadcastToRoom(Room room, String message, String senderId, String senderName) {
+        if (room.tick == null) {
+            broadcastMessage(message, senderId, senderName, room.clients);
+            return;
+        }
+        room.tick.send(chatFrame(message, senderName), senderId);
+    }
 
+
+    /**
+     * Method to encode a chat message once, every client is sent the same frame
+     */
+    private static Frame chatFrame(String message, String senderName) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
+        map.put(Server.KEY_MESSAGE, message);
+        map.put(Server.KEY_USER_NAME, senderName);
+        return Frame.of(map);
+    }
+
+
+    /**
+     * Method to send a frame to all the clients but the sender
+     *
+     * @param frame    frame to send
+     * @param senderId id of the sender
+     * @param clients  clients to send to
+     */
+    void broadcastFrame(Frame frame, String senderId, List<Client> clients) {
+        int recipients = 0;
         for (Client client : clients) {
             //send the message to all the clients except the sender
             if (client.clientId.equals(senderId)) continue;
 
             try {
-                Map<String, String> map = new HashMap<>();
-                map.put(Server.KEY_TYPE, Server.METHOD_SEND_MSG);
-                map.put(Server.KEY_MESSAGE, message);
-                map.put(Server.KEY_USER_NAME, senderName);
-
-                client.writer.write(map.toString());
-                client.writer.newLine();
-                client.writer.flush();
+                sendFrame(client, frame);
+                recipients++;
             } catch (Exception e) {
                 System.out.println("Error broadcasting message");
             }
         }
+
+        //the frame was created at the start of the broadcast
+        stats.broadcast(recipients, System.nanoTime() - frame.created());
+    }
+
+
+    /**
+     * Method to get the outbound queue depth of every client, large values point at slow consumers
+     *
+     * @return queue depth by client id
+     */
+    public Map<String, Integer> queueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        members().forEach((room, clients) -> {
+            for (Client client : clients) {
+                depths.put(client.clientId, client.outbound.depth());
+            }
+        });
+        return depths;
+    }
+
+
+    /**
+     * Method to get the number of refused chat messages of every client and every room
+     *
+     * @return rejection count by client id and by "room " followed by the room id
+     */
+    public Map<String, Long> rateLimitRejections() {
+        Map<String, Long> rejections = new HashMap<>();
+        members().forEach((room, clients) -> {
+            if (room.limiter != null) rejections.put("room " + room.roomId, room.limiter.rejected());
+            for (Client client : clients) {
+                if (client.limiter != null) rejections.put(client.clientId, client.limiter.rejected());
+            }
+        });
+        return rejections;
+    }
+
+
+    /**
+     * Method to get the clients of every room, copied on the loop owning each room when there are loops
+     * <p>
+     * Waits for the loops, so it must not be called from one.
+     *
+     * @return clients by room
+     */
+    private Map<Room, List<Client>> members() {
+        Map<Room, List<Client>> members = new HashMap<>();
+        if (loops == null) {
+            rooms.forEach(room -> members.put(room, room.clients));
+            return members;
+        }
+
+        //hand every loop its copies first, so the loops copy in parallel while this thread waits
+        Map<Room, CompletableFuture<List<Client>>> copies = new HashMap<>();
+        rooms.forEach(room -> {
+            CompletableFuture<List<Client>> copy = new CompletableFuture<>();
+            copies.put(room, copy);
+            try {
+                loops.execute(room.id, () -> copy.complete(new ArrayList<>(room.clients)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                copy.complete(List.of());
+            }
+        });
+        copies.forEach((room, copy) -> members.put(room, copy.join()));
+        return members;
+    }
+
+
+    /**
+     * Method to queue an encoded frame for a client, the client's writer thread sends it
+     *
+     * @param client client to send the frame to
+     * @param frame  frame to send
+     */
+    public void sendFrame(Client client, Frame frame) {
+        client.outbound.offer(frame);
     }
 
 
@@ -366,16 +924,18 @@ public class Server {
      */
     public static void main(String[] args) {
         ServerSocket serverSocket;
+        int port = Integer.getInteger(PROPERTY_PORT, 8080);
         try {
             //create a new server socket
-            serverSocket = new ServerSocket(8080);
-            System.out.println("Server running on port 8080");
+            serverSocket = new ServerSocket(port);
+            System.out.println("Server running on port " + port);
 
-            //create a new server
-            Server server = new Server(serverSocket);
+            //create a new server, "java Server virtual" serves clients on virtual threads
+            boolean virtualThreads = args.length > 0 && args[0].equals("virtual");
+            Server server = new Server(serverSocket, virtualThreads);
             server.startServer();
         } catch (Exception e) {
-            System.out.println("Error starting server on port 8080");
+            System.out.println("Error starting server on port " + port);
         }
     }
 }
@@ -0,0 +1,171 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hashed timing wheel running many coarse timers on a single thread.
+ * <p>
+ * Time is cut into ticks and the wheel has one bucket per tick of a revolution. A timer goes
+ * into the bucket of the tick it expires on, with the number of whole revolutions still to
+ * wait, so scheduling and cancelling are O(1) whatever the number of timers, and every tick
+ * only looks at the timers of one bucket. Timers fire up to one tick late.
+ * <p>
+ * Other threads only add timers to a queue, the wheel thread moves them into their buckets
+ * at the next tick, so the buckets need no locking.
+ */
+public class TimingWheel implements Runnable {
+
+    // A scheduled task, cancelled at most once
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        //only touched by the wheel thread
+        private long rounds;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+
+        /**
+         * Method to stop the timer from firing
+         *
+         * @return false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            return done.compareAndSet(false, true);
+        }
+    }
+
+    // Doubly linked list of the timers of one tick
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.previous = tail;
+            if (tail == null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) head = timeout.next;
+            else timeout.previous.next = timeout.next;
+            if (timeout.next == null) tail = timeout.previous;
+            else timeout.next.previous = timeout.previous;
+            timeout.previous = timeout.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+
+    //timers scheduled since the last tick
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    //number of ticks processed so far
+    private volatile long tick;
+
+    /**
+     * @param tickMillis length of a tick, the precision of the timers
+     * @param wheelSize  number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+
+    /**
+     * Method to start the wheel thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "chat-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Method to run a task on the wheel thread once a delay has passed
+     * <p>
+     * Tasks run one after the other, so they should only do quick work such as queueing a frame.
+     *
+     * @param task        task to run
+     * @param delayMillis delay before it runs
+     * @return handle to cancel the timer
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long elapsed = System.nanoTime() - startTime;
+        long deadline = (elapsed + TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(task, Math.max(deadline, tick + 1));
+        added.add(timeout);
+        return timeout;
+    }
+
+
+    /**
+     * Wheel loop, fires the timers of every tick
+     */
+    @Override
+    public void run() {
+        while (true) {
+            //sleep until the next tick is due
+            long wait = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            long current = tick + 1;
+
+            //put the newly scheduled timers into their buckets
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (timeout.done.get()) continue;
+                long ticks = Math.max(timeout.deadlineTick, current) - current;
+                timeout.rounds = ticks / buckets.length;
+                buckets[(int) ((current + ticks) & mask)].add(timeout);
+            }
+
+            //fire the timers of this tick that are in their last revolution
+            Bucket bucket = buckets[(int) (current & mask)];
+            timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.done.get()) {
+                    bucket.remove(timeout);
+                } else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    bucket.remove(timeout);
+                    if (timeout.done.compareAndSet(false, true)) {
+                        try {
+                            timeout.task.run();
+                        } catch (Exception e) {
+                            System.out.println("Error in timer task");
+                        }
+                    }
+                }
+                timeout = next;
+            }
+            tick = current;
+        }
+    }
+}
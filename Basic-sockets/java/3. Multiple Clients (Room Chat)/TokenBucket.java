@@ -0,0 +1,81 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket limiting how many chat messages are fanned out per second.
+ * <p>
+ * The bucket is kept as a single timestamp, the time at which it would be full again, in the
+ * style of the generic cell rate algorithm. A message is allowed when that time is less than a
+ * burst worth of tokens away, and then pushes it one token further. Taking a token is one
+ * compare-and-set, so the same bucket can be shared by all the clients of a room.
+ */
+public class TokenBucket {
+
+    //settings read by the servers, e.g. -Dchat.rate.messages=5 -Dchat.rate.burst=10, a rate of 0 turns limiting off
+    public static final String PROPERTY_RATE = "chat.rate.messages";
+    public static final String PROPERTY_BURST = "chat.rate.burst";
+    public static final String PROPERTY_ROOM_RATE = "chat.rate.room.messages";
+    public static final String PROPERTY_ROOM_BURST = "chat.rate.room.burst";
+    public static final double DEFAULT_RATE = 20;
+    public static final int DEFAULT_BURST = 50;
+
+    //reply to a message that was not sent, encoded only once
+    static final Frame REJECTED = Frame.constant(rejectedMessage());
+
+    //time one token takes to come back and how far ahead of now the bucket may run
+    private final long interval;
+    private final long tolerance;
+
+    //time at which the bucket is full again
+    private final AtomicLong full;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param rate  tokens added per second
+     * @param burst tokens the bucket holds, i.e. messages allowed back to back
+     */
+    public TokenBucket(double rate, int burst) {
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.tolerance = interval * Math.max(0, burst - 1);
+        this.full = new AtomicLong(System.nanoTime());
+    }
+
+
+    /**
+     * Method to take a token if there is one
+     *
+     * @return true if the message may be sent
+     */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = full.get();
+            if (current - now > tolerance) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            long next = Math.max(current, now) + interval;
+            if (full.compareAndSet(current, next)) return true;
+        }
+    }
+
+
+    /**
+     * Method to get the number of messages refused so far
+     *
+     * @return rejection count
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+
+    private static Map<String, String> rejectedMessage() {
+        Map<String, String> map = new HashMap<>();
+        map.put(Server.KEY_TYPE, Server.METHOD_RATE_LIMITED);
+        return map;
+    }
+}
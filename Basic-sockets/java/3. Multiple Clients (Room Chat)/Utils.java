@@ -1,5 +1,4 @@
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -14,27 +13,6 @@ public class Utils {
     }
 
 
-    /**
-     * Method to generate a unique room id in range 1000-9999
-     *
-     * @param roomsList list of rooms
-     * @return unique room id
-     */
-    public static int generateRoomId(List<Server.Room> roomsList) {
-        int min = 1000;
-        int max = 10000;
-        int roomId = (int) (Math.random() * (max - min) + min);
-
-        for (Server.Room room : roomsList) {
-            if (roomId == Integer.parseInt(room.roomId)) {
-                return generateRoomId(roomsList);
-            }
-        }
-
-        return roomId;
-    }
-
-
     /**
      * Method to convert a message to a map
      *